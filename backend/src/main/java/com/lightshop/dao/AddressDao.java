@@ -62,23 +62,27 @@ public class AddressDao {
 
     public int create(Address address) {
         String sql = "INSERT INTO addresses (user_id, receiver_name, phone, province, city, district, detail_address, is_default) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            stmt.setInt(1, address.getUserId());
-            stmt.setString(2, address.getReceiverName());
-            stmt.setString(3, address.getPhone());
-            stmt.setString(4, address.getProvince());
-            stmt.setString(5, address.getCity());
-            stmt.setString(6, address.getDistrict());
-            stmt.setString(7, address.getDetailAddress());
-            stmt.setInt(8, address.isDefault() ? 1 : 0);
-            stmt.executeUpdate();
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    stmt.setInt(1, address.getUserId());
+                    stmt.setString(2, address.getReceiverName());
+                    stmt.setString(3, address.getPhone());
+                    stmt.setString(4, address.getProvince());
+                    stmt.setString(5, address.getCity());
+                    stmt.setString(6, address.getDistrict());
+                    stmt.setString(7, address.getDetailAddress());
+                    stmt.setInt(8, address.isDefault() ? 1 : 0);
+                    stmt.executeUpdate();
 
-            try (ResultSet rs = stmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    return rs.getInt(1);
+                    try (ResultSet rs = stmt.getGeneratedKeys()) {
+                        if (rs.next()) {
+                            return rs.getInt(1);
+                        }
+                    }
                 }
-            }
+                return -1;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -87,17 +91,20 @@ public class AddressDao {
 
     public boolean update(Address address) {
         String sql = "UPDATE addresses SET receiver_name = ?, phone = ?, province = ?, city = ?, district = ?, detail_address = ?, is_default = ?, updated_at = CURRENT_TIMESTAMP WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, address.getReceiverName());
-            stmt.setString(2, address.getPhone());
-            stmt.setString(3, address.getProvince());
-            stmt.setString(4, address.getCity());
-            stmt.setString(5, address.getDistrict());
-            stmt.setString(6, address.getDetailAddress());
-            stmt.setInt(7, address.isDefault() ? 1 : 0);
-            stmt.setInt(8, address.getId());
-            return stmt.executeUpdate() > 0;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setString(1, address.getReceiverName());
+                    stmt.setString(2, address.getPhone());
+                    stmt.setString(3, address.getProvince());
+                    stmt.setString(4, address.getCity());
+                    stmt.setString(5, address.getDistrict());
+                    stmt.setString(6, address.getDetailAddress());
+                    stmt.setInt(7, address.isDefault() ? 1 : 0);
+                    stmt.setInt(8, address.getId());
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -106,10 +113,13 @@ public class AddressDao {
 
     public boolean delete(int id) {
         String sql = "DELETE FROM addresses WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, id);
-            return stmt.executeUpdate() > 0;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, id);
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -118,11 +128,14 @@ public class AddressDao {
 
     public boolean clearDefault(int userId) {
         String sql = "UPDATE addresses SET is_default = 0 WHERE user_id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, userId);
-            stmt.executeUpdate();
-            return true;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, userId);
+                    stmt.executeUpdate();
+                    return true;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -130,15 +143,19 @@ public class AddressDao {
     }
 
     public boolean setDefault(int id, int userId) {
-        // First clear all defaults
-        clearDefault(userId);
-        // Then set the new default
         String sql = "UPDATE addresses SET is_default = 1 WHERE id = ? AND user_id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, id);
-            stmt.setInt(2, userId);
-            return stmt.executeUpdate() > 0;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                // First clear all defaults, then set the new default in the same transaction
+                if (!clearDefault(userId)) {
+                    throw new SQLException("Failed to clear default address for user " + userId);
+                }
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, id);
+                    stmt.setInt(2, userId);
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
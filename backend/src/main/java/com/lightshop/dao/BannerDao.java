@@ -2,6 +2,7 @@ package com.lightshop.dao;
 
 import com.lightshop.model.Banner;
 import com.lightshop.util.DatabaseUtil;
+import com.lightshop.util.TableVersions;
 
 import java.sql.*;
 import java.util.ArrayList;
@@ -57,51 +58,67 @@ public class BannerDao {
 
     public int create(Banner banner) {
         String sql = "INSERT INTO banners (title, image, link, sort_order, status) VALUES (?, ?, ?, ?, ?)";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            stmt.setString(1, banner.getTitle());
-            stmt.setString(2, banner.getImage());
-            stmt.setString(3, banner.getLink());
-            stmt.setInt(4, banner.getSortOrder());
-            stmt.setInt(5, banner.getStatus());
-            stmt.executeUpdate();
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    stmt.setString(1, banner.getTitle());
+                    stmt.setString(2, banner.getImage());
+                    stmt.setString(3, banner.getLink());
+                    stmt.setInt(4, banner.getSortOrder());
+                    stmt.setInt(5, banner.getStatus());
+                    stmt.executeUpdate();
 
-            try (ResultSet rs = stmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    return rs.getInt(1);
+                    try (ResultSet rs = stmt.getGeneratedKeys()) {
+                        if (rs.next()) {
+                            return rs.getInt(1);
+                        }
+                    }
                 }
-            }
+                return -1;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            TableVersions.bump(TableVersions.BANNERS);
         }
         return -1;
     }
 
     public boolean update(Banner banner) {
         String sql = "UPDATE banners SET title = ?, image = ?, link = ?, sort_order = ?, status = ? WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, banner.getTitle());
-            stmt.setString(2, banner.getImage());
-            stmt.setString(3, banner.getLink());
-            stmt.setInt(4, banner.getSortOrder());
-            stmt.setInt(5, banner.getStatus());
-            stmt.setInt(6, banner.getId());
-            return stmt.executeUpdate() > 0;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setString(1, banner.getTitle());
+                    stmt.setString(2, banner.getImage());
+                    stmt.setString(3, banner.getLink());
+                    stmt.setInt(4, banner.getSortOrder());
+                    stmt.setInt(5, banner.getStatus());
+                    stmt.setInt(6, banner.getId());
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            TableVersions.bump(TableVersions.BANNERS);
         }
         return false;
     }
 
     public boolean delete(int id) {
         String sql = "DELETE FROM banners WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, id);
-            return stmt.executeUpdate() > 0;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, id);
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            TableVersions.bump(TableVersions.BANNERS);
         }
         return false;
     }
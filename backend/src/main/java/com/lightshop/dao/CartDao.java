@@ -6,214 +6,112 @@ import com.lightshop.util.DatabaseUtil;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+/**
+ * Persistence behind CartStore. Carts are read and changed through CartStore
+ * only; writing cart_items anywhere else would be overwritten by its flushes.
+ */
 public class CartDao {
-
-    public List<CartItem> findByUserId(int userId) {
+    /**
+     * The raw cart lines of a user, without product columns, oldest first.
+     * Returns null if the query fails, so callers can tell an error from an
+     * empty cart.
+     */
+    public List<CartItem> findLinesByUserId(int userId) {
         List<CartItem> items = new ArrayList<>();
-        String sql = "SELECT c.*, p.name as product_name, p.price as product_price, " +
-            "p.images as product_image, p.stock as product_stock " +
-            "FROM cart_items c JOIN products p ON c.product_id = p.id " +
-            "WHERE c.user_id = ? AND p.status = 1 ORDER BY c.created_at DESC";
+        String sql = "SELECT * FROM cart_items WHERE user_id = ? ORDER BY created_at, id";
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setInt(1, userId);
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    items.add(mapResultSet(rs));
+                    CartItem item = new CartItem();
+                    item.setId(rs.getInt("id"));
+                    item.setUserId(rs.getInt("user_id"));
+                    item.setProductId(rs.getInt("product_id"));
+                    item.setQuantity(rs.getInt("quantity"));
+                    item.setSelected(rs.getInt("selected") == 1);
+                    item.setCreatedAt(rs.getTimestamp("created_at"));
+                    item.setUpdatedAt(rs.getTimestamp("updated_at"));
+                    items.add(item);
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
+            return null;
         }
         return items;
     }
 
-    public CartItem findByUserAndProduct(int userId, int productId) {
-        String sql = "SELECT c.*, p.name as product_name, p.price as product_price, p.images as product_image, p.stock as product_stock FROM cart_items c JOIN products p ON c.product_id = p.id WHERE c.user_id = ? AND c.product_id = ?";
+    // Highest id ever handed out, including rows already deleted
+    public int findMaxId() {
+        String sql = "SELECT MAX(COALESCE((SELECT MAX(id) FROM cart_items), 0), " +
+            "COALESCE((SELECT seq FROM sqlite_sequence WHERE name = 'cart_items'), 0))";
         try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, userId);
-            stmt.setInt(2, productId);
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    return mapResultSet(rs);
-                }
+             PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            if (rs.next()) {
+                return rs.getInt(1);
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return null;
+        return 0;
     }
 
-    public int create(CartItem item) {
-        String sql = "INSERT INTO cart_items (user_id, product_id, quantity, selected) VALUES (?, ?, ?, ?)";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            stmt.setInt(1, item.getUserId());
-            stmt.setInt(2, item.getProductId());
-            stmt.setInt(3, item.getQuantity());
-            stmt.setInt(4, item.isSelected() ? 1 : 0);
-            stmt.executeUpdate();
-
-            try (ResultSet rs = stmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    return rs.getInt(1);
+    /**
+     * Writes one user's coalesced cart changes: deletes first, so a product
+     * removed and added again doesn't trip the (user_id, product_id) key, then
+     * upserts by id. Queued on the writer so the changes of many users are
+     * committed together; completes with false if this user's part failed.
+     */
+    public CompletableFuture<Boolean> saveAsync(List<CartItem> upserts, List<Integer> deletes) {
+        String deleteSql = "DELETE FROM cart_items WHERE id = ?";
+        String upsertSql = "INSERT INTO cart_items (id, user_id, product_id, quantity, selected) VALUES (?, ?, ?, ?, ?) " +
+            "ON CONFLICT(id) DO UPDATE SET quantity = excluded.quantity, selected = excluded.selected, updated_at = CURRENT_TIMESTAMP";
+        return DatabaseUtil.submitWrite(conn -> {
+            if (!deletes.isEmpty()) {
+                try (PreparedStatement stmt = conn.prepareStatement(deleteSql)) {
+                    for (int id : deletes) {
+                        stmt.setInt(1, id);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
                 }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return -1;
-    }
-
-    public boolean updateQuantity(int id, int quantity) {
-        String sql = "UPDATE cart_items SET quantity = ?, updated_at = CURRENT_TIMESTAMP WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, quantity);
-            stmt.setInt(2, id);
-            return stmt.executeUpdate() > 0;
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return false;
-    }
-
-    public boolean updateSelected(int id, boolean selected) {
-        String sql = "UPDATE cart_items SET selected = ?, updated_at = CURRENT_TIMESTAMP WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, selected ? 1 : 0);
-            stmt.setInt(2, id);
-            return stmt.executeUpdate() > 0;
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return false;
-    }
-
-    public boolean updateAllSelected(int userId, boolean selected) {
-        String sql = "UPDATE cart_items SET selected = ?, updated_at = CURRENT_TIMESTAMP WHERE user_id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, selected ? 1 : 0);
-            stmt.setInt(2, userId);
-            return stmt.executeUpdate() > 0;
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return false;
-    }
-
-    public boolean delete(int id) {
-        String sql = "DELETE FROM cart_items WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, id);
-            return stmt.executeUpdate() > 0;
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return false;
-    }
-
-    public boolean deleteByUserAndProduct(int userId, int productId) {
-        String sql = "DELETE FROM cart_items WHERE user_id = ? AND product_id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, userId);
-            stmt.setInt(2, productId);
-            return stmt.executeUpdate() > 0;
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return false;
-    }
-
-    public boolean deleteSelected(int userId) {
-        String sql = "DELETE FROM cart_items WHERE user_id = ? AND selected = 1";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, userId);
-            return stmt.executeUpdate() > 0;
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return false;
-    }
-
-    public boolean clearCart(int userId) {
-        String sql = "DELETE FROM cart_items WHERE user_id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, userId);
-            return stmt.executeUpdate() > 0;
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return false;
-    }
-
-    public int countByUser(int userId) {
-        String sql = "SELECT COUNT(*) FROM cart_items WHERE user_id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, userId);
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt(1);
+            if (!upserts.isEmpty()) {
+                try (PreparedStatement stmt = conn.prepareStatement(upsertSql)) {
+                    for (CartItem item : upserts) {
+                        stmt.setInt(1, item.getId());
+                        stmt.setInt(2, item.getUserId());
+                        stmt.setInt(3, item.getProductId());
+                        stmt.setInt(4, item.getQuantity());
+                        stmt.setInt(5, item.isSelected() ? 1 : 0);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
                 }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return 0;
-    }
-
-    public List<CartItem> findSelectedByUserId(int userId) {
-        List<CartItem> items = new ArrayList<>();
-        String sql = "SELECT c.*, p.name as product_name, p.price as product_price, " +
-            "p.images as product_image, p.stock as product_stock " +
-            "FROM cart_items c JOIN products p ON c.product_id = p.id " +
-            "WHERE c.user_id = ? AND c.selected = 1 AND p.status = 1 ORDER BY c.created_at DESC";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, userId);
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    items.add(mapResultSet(rs));
-                }
+            return true;
+        }).handle((saved, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                cause.printStackTrace();
+                return false;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return items;
+            return true;
+        });
     }
 
-    private CartItem mapResultSet(ResultSet rs) throws SQLException {
-        CartItem item = new CartItem();
-        item.setId(rs.getInt("id"));
-        item.setUserId(rs.getInt("user_id"));
-        item.setProductId(rs.getInt("product_id"));
-        item.setQuantity(rs.getInt("quantity"));
-        item.setSelected(rs.getInt("selected") == 1);
-        item.setCreatedAt(rs.getTimestamp("created_at"));
-        item.setUpdatedAt(rs.getTimestamp("updated_at"));
-        
-        // Product info
-        item.setProductName(rs.getString("product_name"));
-        item.setProductPrice(rs.getDouble("product_price"));
-        String images = rs.getString("product_image");
+    // Product images are stored as a JSON array; the cart shows the first one
+    static String firstImage(String images) {
         if (images != null && !images.isEmpty()) {
-            // Get first image from JSON array
             if (images.startsWith("[")) {
                 images = images.replace("[", "").replace("]", "").replace("\"", "").split(",")[0];
             }
         }
-        item.setProductImage(images);
-        item.setProductStock(rs.getInt("product_stock"));
-        return item;
+        return images;
     }
 }
-
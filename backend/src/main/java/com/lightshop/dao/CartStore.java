@@ -0,0 +1,768 @@
+package com.lightshop.dao;
+
+import com.lightshop.model.CartItem;
+import com.lightshop.model.Product;
+import com.lightshop.util.DatabaseUtil;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Write-behind cart store. Each user's cart lines are held in memory once
+ * loaded; reads and changes are served from there, and changed line ids are
+ * queued for a background flusher that writes each user's latest state to
+ * cart_items, so ten quantity taps cost one UPDATE. The carts live in LRU
+ * shards; only carts with nothing left to flush are evicted. Product details
+ * come from ProductDao's cache instead of a join per request.
+ *
+ * Line ids are handed out here, so new lines don't wait for an insert.
+ */
+public class CartStore {
+    private static final int DEFAULT_MAX_USERS = 10_000;
+    private static final int DEFAULT_SHARDS = 16;
+    private static final long DEFAULT_FLUSH_INTERVAL_MS = 1_000;
+    private static final int DEFAULT_FLUSH_ATTEMPTS = 5;
+
+    private static final ProductDao productDao = new ProductDao();
+    private static final CartDao cartDao = new CartDao();
+    private static final Set<UserCart> dirtyCarts = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+    private static final AtomicLong flushes = new AtomicLong();
+    private static final AtomicLong flushedRows = new AtomicLong();
+    private static final AtomicLong flushFailures = new AtomicLong();
+    private static final AtomicLong discarded = new AtomicLong();
+
+    private static volatile Shard[] shards = createShards();
+    private static volatile AtomicInteger nextId;
+    private static volatile Thread flusher;
+    private static volatile boolean running = false;
+    private static long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+    private static int maxFlushAttempts = DEFAULT_FLUSH_ATTEMPTS;
+
+    public static synchronized void start() {
+        if (running) {
+            return;
+        }
+        flushIntervalMs = Math.max(10, DatabaseUtil.getEnvLong("CART_FLUSH_INTERVAL_MS", DEFAULT_FLUSH_INTERVAL_MS));
+        maxFlushAttempts = Math.max(1, DatabaseUtil.getEnvInt("CART_FLUSH_MAX_ATTEMPTS", DEFAULT_FLUSH_ATTEMPTS));
+        shards = createShards();
+        nextId = new AtomicInteger(cartDao.findMaxId());
+        running = true;
+        flusher = new Thread(CartStore::run, "lightshop-cart-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /** Stops the flusher and writes out everything still pending. */
+    public static synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /** The user's cart lines for active products, newest first, with product details filled in. */
+    public static List<CartItem> findByUserId(int userId) {
+        return withProducts(userId, snapshot(userId, false));
+    }
+
+    public static List<CartItem> findSelectedByUserId(int userId) {
+        return withProducts(userId, snapshot(userId, true));
+    }
+
+    /** The user's line for a product, without product details, or null. */
+    public static CartItem findByUserAndProduct(int userId, int productId) {
+        UserCart cart = lock(userId);
+        try {
+            Line line = cart.byProduct(productId);
+            return line != null ? line.toItem(userId) : null;
+        } finally {
+            unlock(cart);
+        }
+    }
+
+    /** Adds a new line and returns its id. */
+    public static int add(int userId, int productId, int quantity) {
+        UserCart cart = lock(userId);
+        try {
+            Line existing = cart.byProduct(productId);
+            if (existing != null) {
+                existing.quantity = quantity;
+                existing.touch();
+                cart.changed(existing.id);
+                return existing.id;
+            }
+            Line line = new Line(nextId().incrementAndGet(), productId, quantity, true);
+            cart.lines.add(line);
+            cart.changed(line.id);
+            return line.id;
+        } finally {
+            unlock(cart);
+        }
+    }
+
+    public static boolean updateQuantity(int userId, int itemId, int quantity) {
+        UserCart cart = lock(userId);
+        try {
+            Line line = cart.byId(itemId);
+            if (line == null) {
+                return false;
+            }
+            line.quantity = quantity;
+            line.touch();
+            cart.changed(itemId);
+            return true;
+        } finally {
+            unlock(cart);
+        }
+    }
+
+    public static boolean updateSelected(int userId, int itemId, boolean selected) {
+        UserCart cart = lock(userId);
+        try {
+            Line line = cart.byId(itemId);
+            if (line == null) {
+                return false;
+            }
+            if (line.selected != selected) {
+                line.selected = selected;
+                line.touch();
+                cart.changed(itemId);
+            }
+            return true;
+        } finally {
+            unlock(cart);
+        }
+    }
+
+    public static void updateAllSelected(int userId, boolean selected) {
+        UserCart cart = lock(userId);
+        try {
+            for (Line line : cart.lines) {
+                if (line.selected != selected) {
+                    line.selected = selected;
+                    line.touch();
+                    cart.changed(line.id);
+                }
+            }
+        } finally {
+            unlock(cart);
+        }
+    }
+
+    public static boolean delete(int userId, int itemId) {
+        UserCart cart = lock(userId);
+        try {
+            Line line = cart.byId(itemId);
+            if (line == null) {
+                return false;
+            }
+            cart.lines.remove(line);
+            cart.changed(itemId);
+            return true;
+        } finally {
+            unlock(cart);
+        }
+    }
+
+    public static void deleteSelected(int userId) {
+        UserCart cart = lock(userId);
+        try {
+            removeIf(cart, line -> line.selected);
+        } finally {
+            unlock(cart);
+        }
+    }
+
+    public static void clear(int userId) {
+        UserCart cart = lock(userId);
+        try {
+            removeIf(cart, line -> true);
+        } finally {
+            unlock(cart);
+        }
+    }
+
+    /** Drops the lines of products that were just ordered from the cart. */
+    public static void removeProducts(int userId, Collection<Integer> productIds) {
+        UserCart cart = lock(userId);
+        try {
+            removeIf(cart, line -> productIds.contains(line.productId));
+        } finally {
+            unlock(cart);
+        }
+    }
+
+    /** Writes every pending change to cart_items; returns the number of rows written. */
+    public static int flush() {
+        List<UserCart> carts = new ArrayList<>(dirtyCarts);
+        List<Pending> pending = new ArrayList<>(carts.size());
+        for (UserCart cart : carts) {
+            dirtyCarts.remove(cart);
+            cart.lock.lock();
+            try {
+                if (cart.discarded) {
+                    continue;
+                }
+                // Every user's changes are queued before waiting, so the writer commits them together
+                Pending p = submit(cart);
+                if (p != null) {
+                    pending.add(p);
+                }
+            } finally {
+                cart.lock.unlock();
+            }
+        }
+
+        int written = 0;
+        for (Pending p : pending) {
+            written += complete(p);
+        }
+        if (!pending.isEmpty()) {
+            flushes.incrementAndGet();
+            flushedRows.addAndGet(written);
+        }
+        for (Shard shard : shards) {
+            shard.trim();
+        }
+        return written;
+    }
+
+    /**
+     * Applies a list of line changes to the user's cart as a unit: every
+     * line must be in the cart and every new quantity within stock, checked
+     * with one product lookup, or nothing changes. The result is written at
+     * once in a single transaction rather than left to the flusher, with the
+     * cart locked until it commits. Returns null on success, otherwise the
+     * reason nothing was applied; throws IllegalStateException if the write
+     * fails, after putting the cart back as it was.
+     */
+    public static String applyBatch(int userId, List<Operation> operations) {
+        UserCart cart = lock(userId);
+        try {
+            List<Line> lines = new ArrayList<>(operations.size());
+            List<Integer> productIds = new ArrayList<>();
+            for (Operation op : operations) {
+                Line line = cart.byId(op.itemId);
+                if (line == null) {
+                    return "购物车商品不存在";
+                }
+                lines.add(line);
+                if (!op.delete && op.quantity != null && op.quantity > 0) {
+                    productIds.add(line.productId);
+                }
+            }
+
+            if (!productIds.isEmpty()) {
+                int[] ids = new int[productIds.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = productIds.get(i);
+                }
+                Map<Integer, Product> products = new HashMap<>();
+                for (Product product : productDao.findByIds(ids)) {
+                    products.put(product.getId(), product);
+                }
+                for (int i = 0; i < operations.size(); i++) {
+                    Operation op = operations.get(i);
+                    if (op.delete || op.quantity == null || op.quantity <= 0) {
+                        continue;
+                    }
+                    Product product = products.get(lines.get(i).productId);
+                    if (product == null || product.getStatus() != 1) {
+                        return "商品不存在或已下架";
+                    }
+                    if (op.quantity > product.getStock()) {
+                        return "商品 " + product.getName() + " 库存不足";
+                    }
+                }
+            }
+
+            List<Line> linesBefore = new ArrayList<>(cart.lines.size());
+            for (Line line : cart.lines) {
+                linesBefore.add(line.copy());
+            }
+            Set<Integer> dirtyBefore = new HashSet<>(cart.dirty);
+
+            for (int i = 0; i < operations.size(); i++) {
+                Operation op = operations.get(i);
+                Line line = lines.get(i);
+                if (op.delete || (op.quantity != null && op.quantity <= 0)) {
+                    cart.lines.remove(line);
+                    cart.changed(line.id);
+                    continue;
+                }
+                if (op.quantity != null) {
+                    line.quantity = op.quantity;
+                }
+                if (op.selected != null) {
+                    line.selected = op.selected;
+                }
+                line.touch();
+                cart.changed(line.id);
+            }
+            Pending pending = submit(cart);
+            if (pending != null) {
+                boolean saved = pending.result.join();
+                cart.flushing--;
+                if (!saved) {
+                    // Lines that were clean match the database again; earlier unflushed changes stay queued
+                    cart.lines.clear();
+                    cart.lines.addAll(linesBefore);
+                    cart.dirty.addAll(dirtyBefore);
+                    throw new IllegalStateException("Failed to save cart batch of user " + userId);
+                }
+                flushedRows.addAndGet(pending.ids.size());
+            }
+            return null;
+        } finally {
+            unlock(cart);
+        }
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        int users = 0;
+        for (Shard shard : shards) {
+            users += shard.size();
+        }
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        stats.put("users", users);
+        stats.put("dirtyUsers", dirtyCarts.size());
+        stats.put("hits", hitCount);
+        stats.put("misses", misses.get());
+        stats.put("hitRatio", total == 0 ? 0.0 : (double) hitCount / total);
+        stats.put("evictions", evictions.get());
+        stats.put("flushes", flushes.get());
+        stats.put("flushedRows", flushedRows.get());
+        stats.put("flushFailures", flushFailures.get());
+        stats.put("discardedCarts", discarded.get());
+        return stats;
+    }
+
+    // Queues the cart's dirty lines on the writer; the caller holds the cart lock
+    private static Pending submit(UserCart cart) {
+        if (cart.dirty.isEmpty()) {
+            return null;
+        }
+        Set<Integer> ids = new HashSet<>(cart.dirty);
+        cart.dirty.clear();
+        cart.flushing++;
+        List<CartItem> upserts = new ArrayList<>();
+        List<Integer> deletes = new ArrayList<>();
+        for (int id : ids) {
+            Line line = cart.byId(id);
+            if (line != null) {
+                upserts.add(line.toItem(cart.userId));
+            } else {
+                deletes.add(id);
+            }
+        }
+        return new Pending(cart, ids, cartDao.saveAsync(upserts, deletes));
+    }
+
+    /**
+     * Waits for a submitted write; returns the rows written, or 0 after
+     * queueing them again. A cart whose writes keep failing, e.g. on a
+     * conflicting row, is dropped after CART_FLUSH_MAX_ATTEMPTS rounds so the
+     * next access reloads it from cart_items instead of retrying forever.
+     */
+    private static int complete(Pending p) {
+        boolean saved = p.result.join();
+        UserCart cart = p.cart;
+        cart.lock.lock();
+        try {
+            cart.flushing--;
+            if (saved) {
+                cart.failures = 0;
+                return p.ids.size();
+            }
+            flushFailures.incrementAndGet();
+            if (cart.discarded) {
+                return 0;
+            }
+            if (++cart.failures < maxFlushAttempts) {
+                System.err.println("Failed to flush cart of user " + cart.userId + " (attempt " + cart.failures + "), retrying");
+                // Retry on the next round; ids changed again meanwhile are already queued
+                cart.dirty.addAll(p.ids);
+                dirtyCarts.add(cart);
+                return 0;
+            }
+            System.err.println("Giving up on cart of user " + cart.userId + " after " + cart.failures
+                + " failed flushes; unsaved changes are dropped and it reloads from the database");
+            discard(cart);
+            return 0;
+        } finally {
+            cart.lock.unlock();
+        }
+    }
+
+    // Caller holds the cart lock; callers still waiting on it see the flag and look the user up again
+    private static void discard(UserCart cart) {
+        cart.discarded = true;
+        cart.dirty.clear();
+        dirtyCarts.remove(cart);
+        shardOf(cart.userId).remove(cart.userId, cart);
+        discarded.incrementAndGet();
+    }
+
+    private static List<Line> snapshot(int userId, boolean selectedOnly) {
+        UserCart cart = lock(userId);
+        try {
+            List<Line> lines = new ArrayList<>(cart.lines.size());
+            for (int i = cart.lines.size() - 1; i >= 0; i--) {
+                Line line = cart.lines.get(i);
+                if (!selectedOnly || line.selected) {
+                    lines.add(line.copy());
+                }
+            }
+            return lines;
+        } finally {
+            unlock(cart);
+        }
+    }
+
+    private static List<CartItem> withProducts(int userId, List<Line> lines) {
+        int[] productIds = new int[lines.size()];
+        for (int i = 0; i < productIds.length; i++) {
+            productIds[i] = lines.get(i).productId;
+        }
+        Map<Integer, Product> products = new HashMap<>();
+        for (Product product : productDao.findByIds(productIds)) {
+            products.put(product.getId(), product);
+        }
+
+        List<CartItem> items = new ArrayList<>(lines.size());
+        for (Line line : lines) {
+            Product product = products.get(line.productId);
+            if (product == null || product.getStatus() != 1) {
+                continue;
+            }
+            CartItem item = line.toItem(userId);
+            item.setProductName(product.getName());
+            item.setProductPrice(product.getPrice());
+            item.setProductImage(CartDao.firstImage(product.getImages()));
+            item.setProductStock(product.getStock());
+            items.add(item);
+        }
+        return items;
+    }
+
+    private static void removeIf(UserCart cart, Predicate<Line> filter) {
+        Iterator<Line> it = cart.lines.iterator();
+        while (it.hasNext()) {
+            Line line = it.next();
+            if (filter.test(line)) {
+                it.remove();
+                cart.changed(line.id);
+            }
+        }
+    }
+
+    /**
+     * Returns the user's cart, loaded if needed, with its lock held. The cart
+     * is pinned from lookup until unlock(), so it can't be evicted while a
+     * caller is about to change it.
+     */
+    private static UserCart lock(int userId) {
+        while (true) {
+            UserCart cart = lookup(userId);
+            cart.lock.lock();
+            if (!cart.discarded) {
+                return cart;
+            }
+            // Dropped after failed flushes while we waited; it is out of its shard already
+            cart.pins.decrementAndGet();
+            cart.lock.unlock();
+        }
+    }
+
+    private static void unlock(UserCart cart) {
+        if (!cart.dirty.isEmpty()) {
+            dirtyCarts.add(cart);
+        }
+        cart.pins.decrementAndGet();
+        cart.lock.unlock();
+    }
+
+    private static UserCart lookup(int userId) {
+        Shard shard = shardOf(userId);
+        while (true) {
+            long generation = shard.generation();
+            UserCart cart = shard.get(userId);
+            if (cart != null) {
+                hits.incrementAndGet();
+                return cart;
+            }
+            misses.incrementAndGet();
+            // Load outside the shard lock; a racing loader's copy wins and this one is dropped
+            List<CartItem> rows = cartDao.findLinesByUserId(userId);
+            if (rows == null) {
+                throw new IllegalStateException("Failed to load cart of user " + userId);
+            }
+            UserCart loaded = new UserCart(userId);
+            for (CartItem row : rows) {
+                Line line = new Line(row.getId(), row.getProductId(), row.getQuantity(), row.isSelected());
+                if (row.getCreatedAt() != null) {
+                    line.createdAt = row.getCreatedAt().getTime();
+                }
+                if (row.getUpdatedAt() != null) {
+                    line.updatedAt = row.getUpdatedAt().getTime();
+                }
+                loaded.lines.add(line);
+            }
+            UserCart installed = shard.putIfAbsent(userId, loaded, generation);
+            if (installed != null) {
+                return installed;
+            }
+            // A cart left the shard during the read, so its last flush may postdate these rows
+        }
+    }
+
+    private static Shard shardOf(int userId) {
+        return shards[Math.floorMod(Integer.hashCode(userId) * 0x9E3779B9, shards.length)];
+    }
+
+    private static AtomicInteger nextId() {
+        AtomicInteger ids = nextId;
+        if (ids == null) {
+            synchronized (CartStore.class) {
+                if (nextId == null) {
+                    nextId = new AtomicInteger(cartDao.findMaxId());
+                }
+                ids = nextId;
+            }
+        }
+        return ids;
+    }
+
+    private static Shard[] createShards() {
+        int count = Math.max(1, DatabaseUtil.getEnvInt("CART_STORE_SHARDS", DEFAULT_SHARDS));
+        int perShard = Math.max(1, DatabaseUtil.getEnvInt("CART_STORE_MAX_USERS", DEFAULT_MAX_USERS) / count);
+        Shard[] created = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            created[i] = new Shard(perShard);
+        }
+        return created;
+    }
+
+    private static void run() {
+        while (running) {
+            try {
+                Thread.sleep(flushIntervalMs);
+            } catch (InterruptedException e) {
+                // Shutdown requested; shutdown() runs the final flush
+                return;
+            }
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** One change of a batch: delete the line, or set its quantity and/or selection. */
+    public static final class Operation {
+        private final int itemId;
+        private final Integer quantity;
+        private final Boolean selected;
+        private final boolean delete;
+
+        public Operation(int itemId, Integer quantity, Boolean selected, boolean delete) {
+            this.itemId = itemId;
+            this.quantity = quantity;
+            this.selected = selected;
+            this.delete = delete;
+        }
+    }
+
+    private static final class Line {
+        private final int id;
+        private final int productId;
+        private int quantity;
+        private boolean selected;
+        private long createdAt;
+        private long updatedAt;
+
+        Line(int id, int productId, int quantity, boolean selected) {
+            this.id = id;
+            this.productId = productId;
+            this.quantity = quantity;
+            this.selected = selected;
+            this.createdAt = System.currentTimeMillis();
+            this.updatedAt = createdAt;
+        }
+
+        void touch() {
+            updatedAt = System.currentTimeMillis();
+        }
+
+        Line copy() {
+            Line line = new Line(id, productId, quantity, selected);
+            line.createdAt = createdAt;
+            line.updatedAt = updatedAt;
+            return line;
+        }
+
+        CartItem toItem(int userId) {
+            CartItem item = new CartItem(userId, productId, quantity);
+            item.setId(id);
+            item.setSelected(selected);
+            item.setCreatedAt(new Timestamp(createdAt));
+            item.setUpdatedAt(new Timestamp(updatedAt));
+            return item;
+        }
+    }
+
+    private static final class UserCart {
+        private final int userId;
+        // Taken in lock() and released in unlock(), so not a monitor
+        private final ReentrantLock lock = new ReentrantLock();
+        // Oldest first, as loaded; new lines are appended
+        private final List<Line> lines = new ArrayList<>();
+        // Line ids changed since the last flush; a missing line means delete
+        private final Set<Integer> dirty = new HashSet<>();
+        private final AtomicInteger pins = new AtomicInteger();
+        private int flushing;
+        // Consecutive failed flushes; past the limit the cart is discarded
+        private int failures;
+        private boolean discarded;
+
+        UserCart(int userId) {
+            this.userId = userId;
+        }
+
+        void changed(int lineId) {
+            dirty.add(lineId);
+        }
+
+        boolean isEvictable() {
+            return pins.get() == 0 && dirty.isEmpty() && flushing == 0;
+        }
+
+        Line byId(int id) {
+            for (Line line : lines) {
+                if (line.id == id) {
+                    return line;
+                }
+            }
+            return null;
+        }
+
+        Line byProduct(int productId) {
+            for (Line line : lines) {
+                if (line.productId == productId) {
+                    return line;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Pending {
+        private final UserCart cart;
+        private final Set<Integer> ids;
+        private final CompletableFuture<Boolean> result;
+
+        Pending(UserCart cart, Set<Integer> ids, CompletableFuture<Boolean> result) {
+            this.cart = cart;
+            this.ids = ids;
+            this.result = result;
+        }
+    }
+
+    /** One LRU segment of the carts, in access order. */
+    private static final class Shard {
+        private final int capacity;
+        private final LinkedHashMap<Integer, UserCart> carts = new LinkedHashMap<>(16, 0.75f, true);
+        // Bumped whenever a cart leaves the shard; loads that straddle a bump are redone
+        private long generation;
+
+        Shard(int capacity) {
+            this.capacity = capacity;
+        }
+
+        // Both lookups pin the cart they return; unlock() releases it
+        synchronized UserCart get(int userId) {
+            UserCart cart = carts.get(userId);
+            if (cart != null) {
+                cart.pins.incrementAndGet();
+            }
+            return cart;
+        }
+
+        synchronized long generation() {
+            return generation;
+        }
+
+        // Returns null instead of installing rows read before a cart was evicted or dropped
+        synchronized UserCart putIfAbsent(int userId, UserCart cart, long loadedAt) {
+            UserCart existing = carts.get(userId);
+            if (existing != null) {
+                existing.pins.incrementAndGet();
+                return existing;
+            }
+            if (generation != loadedAt) {
+                return null;
+            }
+            cart.pins.incrementAndGet();
+            carts.put(userId, cart);
+            trim();
+            return cart;
+        }
+
+        synchronized void remove(int userId, UserCart cart) {
+            if (carts.remove(userId, cart)) {
+                generation++;
+            }
+        }
+
+        synchronized int size() {
+            return carts.size();
+        }
+
+        // Evicts the coldest carts not in use and fully flushed; the rest stay until they are
+        synchronized void trim() {
+            Iterator<UserCart> it = carts.values().iterator();
+            while (carts.size() > capacity && it.hasNext()) {
+                UserCart cart = it.next();
+                if (!cart.lock.tryLock()) {
+                    continue;
+                }
+                try {
+                    if (cart.isEvictable()) {
+                        it.remove();
+                        generation++;
+                        evictions.incrementAndGet();
+                    }
+                } finally {
+                    cart.lock.unlock();
+                }
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.lightshop.dao;
 
 import com.lightshop.model.Category;
 import com.lightshop.util.DatabaseUtil;
+import com.lightshop.util.TableVersions;
 
 import java.sql.*;
 import java.util.ArrayList;
@@ -74,51 +75,71 @@ public class CategoryDao {
 
     public int create(Category category) {
         String sql = "INSERT INTO categories (name, icon, parent_id, sort_order, status) VALUES (?, ?, ?, ?, ?)";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            stmt.setString(1, category.getName());
-            stmt.setString(2, category.getIcon());
-            stmt.setInt(3, category.getParentId());
-            stmt.setInt(4, category.getSortOrder());
-            stmt.setInt(5, category.getStatus());
-            stmt.executeUpdate();
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    stmt.setString(1, category.getName());
+                    stmt.setString(2, category.getIcon());
+                    stmt.setInt(3, category.getParentId());
+                    stmt.setInt(4, category.getSortOrder());
+                    stmt.setInt(5, category.getStatus());
+                    stmt.executeUpdate();
 
-            try (ResultSet rs = stmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    return rs.getInt(1);
+                    try (ResultSet rs = stmt.getGeneratedKeys()) {
+                        if (rs.next()) {
+                            return rs.getInt(1);
+                        }
+                    }
                 }
-            }
+                return -1;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            TableVersions.bump(TableVersions.CATEGORIES);
         }
         return -1;
     }
 
     public boolean update(Category category) {
         String sql = "UPDATE categories SET name = ?, icon = ?, parent_id = ?, sort_order = ?, status = ? WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, category.getName());
-            stmt.setString(2, category.getIcon());
-            stmt.setInt(3, category.getParentId());
-            stmt.setInt(4, category.getSortOrder());
-            stmt.setInt(5, category.getStatus());
-            stmt.setInt(6, category.getId());
-            return stmt.executeUpdate() > 0;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setString(1, category.getName());
+                    stmt.setString(2, category.getIcon());
+                    stmt.setInt(3, category.getParentId());
+                    stmt.setInt(4, category.getSortOrder());
+                    stmt.setInt(5, category.getStatus());
+                    stmt.setInt(6, category.getId());
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            // Cached products carry the category name
+            ProductDao.invalidateAll();
+            TableVersions.bump(TableVersions.CATEGORIES);
         }
         return false;
     }
 
     public boolean delete(int id) {
         String sql = "DELETE FROM categories WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, id);
-            return stmt.executeUpdate() > 0;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, id);
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            // Cached products carry the category name
+            ProductDao.invalidateAll();
+            TableVersions.bump(TableVersions.CATEGORIES);
         }
         return false;
     }
@@ -49,17 +49,21 @@ public class FavoriteDao {
 
     public int create(Favorite favorite) {
         String sql = "INSERT INTO favorites (user_id, product_id) VALUES (?, ?)";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            stmt.setInt(1, favorite.getUserId());
-            stmt.setInt(2, favorite.getProductId());
-            stmt.executeUpdate();
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    stmt.setInt(1, favorite.getUserId());
+                    stmt.setInt(2, favorite.getProductId());
+                    stmt.executeUpdate();
 
-            try (ResultSet rs = stmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    return rs.getInt(1);
+                    try (ResultSet rs = stmt.getGeneratedKeys()) {
+                        if (rs.next()) {
+                            return rs.getInt(1);
+                        }
+                    }
                 }
-            }
+                return -1;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -68,11 +72,14 @@ public class FavoriteDao {
 
     public boolean delete(int userId, int productId) {
         String sql = "DELETE FROM favorites WHERE user_id = ? AND product_id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, userId);
-            stmt.setInt(2, productId);
-            return stmt.executeUpdate() > 0;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, userId);
+                    stmt.setInt(2, productId);
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,56 @@
+package com.lightshop.dao;
+
+import com.lightshop.util.DatabaseUtil;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FlashSaleDao {
+
+    public List<Integer> findProductIds() {
+        List<Integer> productIds = new ArrayList<>();
+        String sql = "SELECT product_id FROM flash_sales ORDER BY product_id";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                productIds.add(rs.getInt("product_id"));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return productIds;
+    }
+
+    public boolean add(int productId) {
+        String sql = "INSERT OR IGNORE INTO flash_sales (product_id) VALUES (?)";
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, productId);
+                    stmt.executeUpdate();
+                    return true;
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    public boolean remove(int productId) {
+        String sql = "DELETE FROM flash_sales WHERE product_id = ?";
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, productId);
+                    return stmt.executeUpdate() > 0;
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,74 @@
+package com.lightshop.dao;
+
+import com.lightshop.util.Cursor;
+import com.lightshop.util.CursorPage;
+import com.lightshop.util.DatabaseUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Shared keyset pagination for the DAO findPage methods. Callers build the
+ * filtered, ordered query; this adds the LIMIT, reads one row past the page
+ * to learn whether another page follows, and encodes the next cursor from the
+ * last row kept.
+ */
+final class KeysetQuery {
+
+    @FunctionalInterface
+    interface RowMapper<T> {
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    private KeysetQuery() {
+    }
+
+    /**
+     * Appends the newest-first condition and ordering used by the
+     * created_at listings. {@code alias} is the table prefix, e.g. "o." or "".
+     */
+    static void newestFirst(StringBuilder sql, List<Object> params, Cursor after, String alias) {
+        if (after != null) {
+            sql.append(" AND (").append(alias).append("created_at, ").append(alias).append("id) < (?, ?)");
+            params.add(after.getKey());
+            params.add(after.getId());
+        }
+        sql.append(" ORDER BY ").append(alias).append("created_at DESC, ").append(alias).append("id DESC");
+    }
+
+    static <T> CursorPage<T> fetch(StringBuilder sql, List<Object> params, int pageSize, String keyColumn,
+                                   RowMapper<T> mapper, ToIntFunction<T> idOf) {
+        List<T> rows = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        int limit = Math.max(1, pageSize);
+        sql.append(" LIMIT ?");
+        params.add(limit + 1);
+
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < params.size(); i++) {
+                stmt.setObject(i + 1, params.get(i));
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(mapper.map(rs));
+                    keys.add(rs.getString(keyColumn));
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        String nextCursor = null;
+        if (rows.size() > limit) {
+            rows.remove(limit);
+            nextCursor = new Cursor(keys.get(limit - 1), idOf.applyAsInt(rows.get(limit - 1))).encode();
+        }
+        return new CursorPage<>(rows, nextCursor);
+    }
+}
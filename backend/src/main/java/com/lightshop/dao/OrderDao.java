@@ -2,49 +2,65 @@ package com.lightshop.dao;
 
 import com.lightshop.model.Order;
 import com.lightshop.model.OrderItem;
+import com.lightshop.util.Cursor;
+import com.lightshop.util.CursorPage;
 import com.lightshop.util.DatabaseUtil;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
 
 public class OrderDao {
+    // create() result when a line item could not reserve enough stock
+    public static final int OUT_OF_STOCK = -2;
+
     private final OrderItemDao orderItemDao = new OrderItemDao();
 
     public Order findById(int id) {
         String sql = "SELECT o.*, u.username FROM orders o LEFT JOIN users u ON o.user_id = u.id WHERE o.id = ?";
+        Order order = null;
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setInt(1, id);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
-                    Order order = mapResultSet(rs);
-                    order.setItems(orderItemDao.findByOrderId(id));
-                    return order;
+                    order = mapResultSet(rs);
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return null;
+        // Items are loaded after the connection is back in the pool, so a lookup never holds two
+        if (order != null) {
+            order.setItems(orderItemDao.findByOrderId(order.getId()));
+        }
+        return order;
     }
 
     public Order findByOrderNo(String orderNo) {
         String sql = "SELECT o.*, u.username FROM orders o LEFT JOIN users u ON o.user_id = u.id WHERE o.order_no = ?";
+        Order order = null;
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setString(1, orderNo);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
-                    Order order = mapResultSet(rs);
-                    order.setItems(orderItemDao.findByOrderId(order.getId()));
-                    return order;
+                    order = mapResultSet(rs);
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return null;
+        // Items are loaded after the connection is back in the pool, so a lookup never holds two
+        if (order != null) {
+            order.setItems(orderItemDao.findByOrderId(order.getId()));
+        }
+        return order;
     }
 
     public List<Order> findByUserId(int userId, Integer status, int page, int pageSize) {
@@ -69,14 +85,13 @@ public class OrderDao {
             }
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    Order order = mapResultSet(rs);
-                    order.setItems(orderItemDao.findByOrderId(order.getId()));
-                    orders.add(order);
+                    orders.add(mapResultSet(rs));
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        attachItems(orders);
         return orders;
     }
 
@@ -108,17 +123,57 @@ public class OrderDao {
             }
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    Order order = mapResultSet(rs);
-                    order.setItems(orderItemDao.findByOrderId(order.getId()));
-                    orders.add(order);
+                    orders.add(mapResultSet(rs));
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        attachItems(orders);
         return orders;
     }
 
+    /**
+     * Keyset variant of findByUserId: newest first, continuing after the
+     * cursor instead of skipping an offset.
+     */
+    public CursorPage<Order> findPageByUserId(int userId, Integer status, Cursor after, int pageSize) {
+        StringBuilder sql = new StringBuilder("SELECT o.*, u.username FROM orders o LEFT JOIN users u ON o.user_id = u.id WHERE o.user_id = ?");
+        List<Object> params = new ArrayList<>();
+        params.add(userId);
+
+        if (status != null) {
+            sql.append(" AND o.status = ?");
+            params.add(status);
+        }
+        return findPage(sql, params, after, pageSize);
+    }
+
+    public CursorPage<Order> findPage(Integer status, String keyword, Cursor after, int pageSize) {
+        StringBuilder sql = new StringBuilder("SELECT o.*, u.username FROM orders o LEFT JOIN users u ON o.user_id = u.id WHERE 1=1");
+        List<Object> params = new ArrayList<>();
+
+        if (status != null) {
+            sql.append(" AND o.status = ?");
+            params.add(status);
+        }
+
+        if (keyword != null && !keyword.isEmpty()) {
+            sql.append(" AND (o.order_no LIKE ? OR u.username LIKE ?)");
+            String likeKeyword = "%" + keyword + "%";
+            params.add(likeKeyword);
+            params.add(likeKeyword);
+        }
+        return findPage(sql, params, after, pageSize);
+    }
+
+    private CursorPage<Order> findPage(StringBuilder sql, List<Object> params, Cursor after, int pageSize) {
+        KeysetQuery.newestFirst(sql, params, after, "o.");
+        CursorPage<Order> page = KeysetQuery.fetch(sql, params, pageSize, "created_at", this::mapResultSet, Order::getId);
+        attachItems(page.getList());
+        return page;
+    }
+
     public int countByUserId(int userId, Integer status) {
         StringBuilder sql = new StringBuilder("SELECT COUNT(*) FROM orders WHERE user_id = ?");
         List<Object> params = new ArrayList<>();
@@ -206,14 +261,81 @@ public class OrderDao {
     }
 
     public int create(Order order, List<OrderItem> items) {
-        Connection conn = null;
+        return create(order, items, false);
+    }
+
+    /**
+     * Creates the order, reserves stock for every line and, if requested,
+     * removes the ordered products from the user's cart, all in one
+     * transaction. Returns the new order id, {@link #OUT_OF_STOCK} if any line
+     * is short (nothing is written), or -1 on other failures.
+     */
+    public int create(Order order, List<OrderItem> items, boolean removeFromCart) {
+        // Reserve stock first: a CAS on the in-memory balance cannot oversell under concurrency
+        if (!StockLedger.reserve(items)) {
+            return OUT_OF_STOCK;
+        }
+        boolean created = false;
         try {
-            conn = DatabaseUtil.getConnection();
-            conn.setAutoCommit(false);
+            // The writer runs the whole task in one transaction and rolls back if it throws
+            int orderId = DatabaseUtil.executeWrite(conn -> insert(conn, order, items, removeFromCart));
+            created = true;
+            return orderId;
+        } catch (OutOfStockException e) {
+            return OUT_OF_STOCK;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (!created) {
+                StockLedger.release(items);
+            }
+            invalidateProducts(items);
+        }
+        return -1;
+    }
+
+    /**
+     * Queues the same work as {@link #create(Order, List, boolean)} without
+     * waiting for it, so a caller can hand several orders to the writer and
+     * have them group-committed together. Completes with the same result codes.
+     */
+    public CompletableFuture<Integer> createAsync(Order order, List<OrderItem> items, boolean removeFromCart) {
+        if (!StockLedger.reserve(items)) {
+            return CompletableFuture.completedFuture(OUT_OF_STOCK);
+        }
+        return DatabaseUtil.submitWrite(conn -> insert(conn, order, items, removeFromCart))
+            .handle((orderId, error) -> {
+                if (error != null) {
+                    StockLedger.release(items);
+                }
+                invalidateProducts(items);
+                if (error == null) {
+                    return orderId;
+                }
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (cause instanceof OutOfStockException) {
+                    return OUT_OF_STOCK;
+                }
+                cause.printStackTrace();
+                return -1;
+            });
+    }
+
+    // Stock changed underneath ProductDao's cache
+    private static void invalidateProducts(List<OrderItem> items) {
+        for (OrderItem item : items) {
+            ProductDao.invalidate(item.getProductId());
+        }
+    }
 
-            // Create order
-            String sql = "INSERT INTO orders (order_no, user_id, total_amount, shipping_fee, status, address_id, address_snapshot, remark) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-            PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+    private int insert(Connection conn, Order order, List<OrderItem> items, boolean removeFromCart) throws SQLException {
+        String sql = "INSERT INTO orders (order_no, user_id, total_amount, shipping_fee, status, address_id, address_snapshot, remark) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        String itemSql = "INSERT INTO order_items (order_id, product_id, product_name, product_image, price, quantity) VALUES (?, ?, ?, ?, ?, ?)";
+        String cartSql = "DELETE FROM cart_items WHERE user_id = ? AND product_id = ?";
+
+        // Create order
+        int orderId;
+        try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             stmt.setString(1, order.getOrderNo());
             stmt.setInt(2, order.getUserId());
             stmt.setDouble(3, order.getTotalAmount());
@@ -224,20 +346,16 @@ public class OrderDao {
             stmt.setString(8, order.getRemark());
             stmt.executeUpdate();
 
-            int orderId;
             try (ResultSet rs = stmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    orderId = rs.getInt(1);
-                } else {
-                    conn.rollback();
-                    return -1;
+                if (!rs.next()) {
+                    throw new SQLException("No generated key returned for order " + order.getOrderNo());
                 }
+                orderId = rs.getInt(1);
             }
-            stmt.close();
+        }
 
-            // Create order items
-            String itemSql = "INSERT INTO order_items (order_id, product_id, product_name, product_image, price, quantity) VALUES (?, ?, ?, ?, ?, ?)";
-            PreparedStatement itemStmt = conn.prepareStatement(itemSql);
+        // Create order items
+        try (PreparedStatement itemStmt = conn.prepareStatement(itemSql)) {
             for (OrderItem item : items) {
                 itemStmt.setInt(1, orderId);
                 itemStmt.setInt(2, item.getProductId());
@@ -248,63 +366,166 @@ public class OrderDao {
                 itemStmt.addBatch();
             }
             itemStmt.executeBatch();
-            itemStmt.close();
+        }
 
-            conn.commit();
-            return orderId;
+        // The stock itself was reserved in memory; this appends it to the ledger
+        int unavailable = StockLedger.appendOrder(conn, orderId, items);
+        if (unavailable != 0) {
+            throw new OutOfStockException(unavailable);
+        }
+
+        if (removeFromCart) {
+            try (PreparedStatement cartStmt = conn.prepareStatement(cartSql)) {
+                for (OrderItem item : items) {
+                    cartStmt.setInt(1, order.getUserId());
+                    cartStmt.setInt(2, item.getProductId());
+                    cartStmt.addBatch();
+                }
+                cartStmt.executeBatch();
+            }
+        }
+        return orderId;
+    }
+
+    public boolean updateStatus(int id, int status) {
+        String sql = "UPDATE orders SET status = ? WHERE id = ?";
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, status);
+                    stmt.setInt(2, id);
+                    return stmt.executeUpdate() > 0;
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    // Only a pending order can be paid, so payment can't race an expiry or a cancel
+    public boolean updatePaidAt(int id) {
+        String sql = "UPDATE orders SET status = " + Order.STATUS_PAID + ", paid_at = CURRENT_TIMESTAMP " +
+                "WHERE id = ? AND status = " + Order.STATUS_PENDING_PAYMENT;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, id);
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
-            if (conn != null) {
-                try {
-                    conn.rollback();
-                } catch (SQLException ex) {
-                    ex.printStackTrace();
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Cancels the orders that are still pending payment and puts their stock
+     * back, all in one transaction. Orders that were paid or cancelled in the
+     * meantime are left alone, so stock is restored exactly once. Returns the
+     * items of the orders actually cancelled, keyed by order id.
+     */
+    public Map<Integer, List<OrderItem>> cancelPending(List<Integer> orderIds) {
+        Map<Integer, List<OrderItem>> cancelled = new LinkedHashMap<>();
+        if (orderIds.isEmpty()) {
+            return cancelled;
+        }
+        Map<Integer, List<OrderItem>> items = orderItemDao.findByOrderIds(orderIds);
+        for (List<OrderItem> orderItems : items.values()) {
+            StockLedger.track(orderItems);
+        }
+        String sql = "UPDATE orders SET status = " + Order.STATUS_CANCELLED + " WHERE id = ? AND status = " + Order.STATUS_PENDING_PAYMENT;
+        try {
+            DatabaseUtil.executeWrite(conn -> {
+                int[] updated;
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    for (int orderId : orderIds) {
+                        stmt.setInt(1, orderId);
+                        stmt.addBatch();
+                    }
+                    updated = stmt.executeBatch();
+                }
+                for (int i = 0; i < updated.length; i++) {
+                    if (updated[i] <= 0) {
+                        continue;
+                    }
+                    List<OrderItem> orderItems = items.getOrDefault(orderIds.get(i), new ArrayList<>());
+                    StockLedger.appendReturn(conn, orderIds.get(i), orderItems);
+                    cancelled.put(orderIds.get(i), orderItems);
                 }
+                return null;
+            });
+            for (List<OrderItem> orderItems : cancelled.values()) {
+                StockLedger.credit(orderItems);
             }
+        } catch (SQLException e) {
             e.printStackTrace();
-            return -1;
+            cancelled.clear();
         } finally {
-            if (conn != null) {
-                try {
-                    conn.setAutoCommit(true);
-                    conn.close();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
+            for (List<OrderItem> orderItems : items.values()) {
+                invalidateProducts(orderItems);
             }
         }
+        return cancelled;
     }
 
-    public boolean updateStatus(int id, int status) {
-        String sql = "UPDATE orders SET status = ? WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, status);
-            stmt.setInt(2, id);
-            return stmt.executeUpdate() > 0;
+    /**
+     * Moves an order from expectedStatus to status and puts its stock back in
+     * the same transaction, recorded in the ledger against the order. Returns
+     * false, restoring nothing, if the order's status changed in the meantime.
+     */
+    public boolean updateStatusWithReturn(int orderId, int expectedStatus, int status, List<OrderItem> items) {
+        StockLedger.track(items);
+        String sql = "UPDATE orders SET status = ? WHERE id = ? AND status = ?";
+        try {
+            boolean updated = DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, status);
+                    stmt.setInt(2, orderId);
+                    stmt.setInt(3, expectedStatus);
+                    if (stmt.executeUpdate() == 0) {
+                        return false;
+                    }
+                }
+                StockLedger.appendReturn(conn, orderId, items);
+                return true;
+            });
+            if (updated) {
+                StockLedger.credit(items);
+            }
+            return updated;
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            invalidateProducts(items);
         }
         return false;
     }
 
-    public boolean updatePaidAt(int id) {
-        String sql = "UPDATE orders SET status = 1, paid_at = CURRENT_TIMESTAMP WHERE id = ?";
+    /** Calls visitor with the id and creation time (epoch ms) of every order still pending payment. */
+    public void forEachPending(BiConsumer<Integer, Long> visitor) {
+        String sql = "SELECT id, CAST(strftime('%s', created_at) AS INTEGER) FROM orders WHERE status = " + Order.STATUS_PENDING_PAYMENT;
         try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, id);
-            return stmt.executeUpdate() > 0;
+             PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                visitor.accept(rs.getInt(1), rs.getLong(2) * 1000);
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return false;
     }
 
     public boolean updateShippedAt(int id) {
-        String sql = "UPDATE orders SET status = 2, shipped_at = CURRENT_TIMESTAMP WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, id);
-            return stmt.executeUpdate() > 0;
+        String sql = "UPDATE orders SET status = " + Order.STATUS_SHIPPED + ", shipped_at = CURRENT_TIMESTAMP WHERE id = ?";
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, id);
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -312,17 +533,41 @@ public class OrderDao {
     }
 
     public boolean updateCompletedAt(int id) {
-        String sql = "UPDATE orders SET status = 4, completed_at = CURRENT_TIMESTAMP WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, id);
-            return stmt.executeUpdate() > 0;
+        String sql = "UPDATE orders SET status = " + Order.STATUS_COMPLETED + ", completed_at = CURRENT_TIMESTAMP WHERE id = ?";
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, id);
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return false;
     }
 
+    // Loads the items of a whole page of orders with one query instead of one per order
+    private void attachItems(List<Order> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        List<Integer> orderIds = new ArrayList<>(orders.size());
+        for (Order order : orders) {
+            orderIds.add(order.getId());
+        }
+        Map<Integer, List<OrderItem>> itemsByOrder = orderItemDao.findByOrderIds(orderIds);
+        for (Order order : orders) {
+            order.setItems(itemsByOrder.getOrDefault(order.getId(), new ArrayList<>()));
+        }
+    }
+
+    private static class OutOfStockException extends SQLException {
+        OutOfStockException(int productId) {
+            super("Insufficient stock for product " + productId);
+        }
+    }
+
     private Order mapResultSet(ResultSet rs) throws SQLException {
         Order order = new Order();
         order.setId(rs.getInt("id"));
@@ -5,7 +5,10 @@ import com.lightshop.util.DatabaseUtil;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class OrderItemDao {
 
@@ -26,6 +29,30 @@ public class OrderItemDao {
         return items;
     }
 
+    public Map<Integer, List<OrderItem>> findByOrderIds(List<Integer> orderIds) {
+        if (orderIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<Integer, List<OrderItem>> itemsByOrder = new HashMap<>();
+        String placeholders = String.join(", ", Collections.nCopies(orderIds.size(), "?"));
+        String sql = "SELECT * FROM order_items WHERE order_id IN (" + placeholders + ") ORDER BY order_id, id";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < orderIds.size(); i++) {
+                stmt.setInt(i + 1, orderIds.get(i));
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    OrderItem item = mapResultSet(rs);
+                    itemsByOrder.computeIfAbsent(item.getOrderId(), k -> new ArrayList<>()).add(item);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return itemsByOrder;
+    }
+
     public OrderItem findById(int id) {
         String sql = "SELECT * FROM order_items WHERE id = ?";
         try (Connection conn = DatabaseUtil.getConnection();
@@ -1,15 +1,94 @@
 package com.lightshop.dao;
 
 import com.lightshop.model.Product;
+import com.lightshop.util.Cursor;
+import com.lightshop.util.CursorPage;
 import com.lightshop.util.DatabaseUtil;
+import com.lightshop.util.LruCache;
+import com.lightshop.util.StringUtil;
+import com.lightshop.util.TableVersions;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ProductDao {
+    private static final long CACHE_TTL_MS = DatabaseUtil.getEnvLong("PRODUCT_CACHE_TTL_MS", 60_000);
+    private static final LruCache<Integer, Product> productCache =
+        new LruCache<>(DatabaseUtil.getEnvInt("PRODUCT_CACHE_SIZE", 1000), CACHE_TTL_MS);
+    // bm25 ranks better matches lower; name hits weigh more than description hits
+    private static final String RELEVANCE_ORDER = " ORDER BY bm25(products_fts, 10.0, 1.0)";
+    private static final int MIN_TRIGRAM_LENGTH = 3;
+    // Bound parameters per IN (...) lookup, well under SQLite's variable limit
+    private static final int MAX_IN_PARAMS = 200;
+    // Bumped by every invalidation so a read that raced a write never re-caches the old row
+    private static long generation = 0;
 
     public Product findById(int id) {
+        Product cached = productCache.get(id);
+        if (cached != null) {
+            return copy(cached);
+        }
+        long loadedAt = currentGeneration();
+        Product product = loadById(id);
+        if (product != null) {
+            cacheIfCurrent(loadedAt, () -> productCache.put(id, copy(product)));
+        }
+        return product;
+    }
+
+    /**
+     * Drops a cached product after its row changed. Call it for writes to the
+     * products table made outside this DAO.
+     */
+    public static synchronized void invalidate(int productId) {
+        generation++;
+        productCache.remove(productId);
+        ProductSampler.markStale();
+        TableVersions.bump(TableVersions.PRODUCTS);
+    }
+
+    public static synchronized void invalidateAll() {
+        generation++;
+        productCache.clear();
+        ProductSampler.markStale();
+        TableVersions.bump(TableVersions.PRODUCTS);
+    }
+
+    public static Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("size", productCache.size());
+        stats.put("hits", productCache.getHits());
+        stats.put("misses", productCache.getMisses());
+        stats.put("hitRatio", productCache.getHitRatio());
+        stats.put("leaderboardSize", ProductLeaderboard.size());
+        return stats;
+    }
+
+    /** Rebuilds the hot/new rankings from the database; called once at startup. */
+    public static void loadLeaderboards() {
+        ProductLeaderboard.rebuild();
+    }
+
+    private static synchronized void catalogChanged() {
+        generation++;
+        ProductSampler.markStale();
+        TableVersions.bump(TableVersions.PRODUCTS);
+    }
+
+    private static synchronized long currentGeneration() {
+        return generation;
+    }
+
+    private static synchronized void cacheIfCurrent(long loadedAt, Runnable put) {
+        if (generation == loadedAt) {
+            put.run();
+        }
+    }
+
+    private Product loadById(int id) {
         String sql = "SELECT p.*, c.name as category_name FROM products p LEFT JOIN categories c ON p.category_id = c.id WHERE p.id = ?";
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
@@ -27,26 +106,10 @@ public class ProductDao {
 
     public List<Product> findAll(int page, int pageSize, Integer categoryId, String keyword, String sort, Boolean onlyActive) {
         List<Product> products = new ArrayList<>();
-        StringBuilder sql = new StringBuilder(
-            "SELECT p.*, c.name as category_name FROM products p LEFT JOIN categories c ON p.category_id = c.id WHERE 1=1"
-        );
         List<Object> params = new ArrayList<>();
-
-        if (onlyActive != null && onlyActive) {
-            sql.append(" AND p.status = 1");
-        }
-
-        if (categoryId != null && categoryId > 0) {
-            sql.append(" AND p.category_id = ?");
-            params.add(categoryId);
-        }
-
-        if (keyword != null && !keyword.isEmpty()) {
-            sql.append(" AND (p.name LIKE ? OR p.description LIKE ?)");
-            String likeKeyword = "%" + keyword + "%";
-            params.add(likeKeyword);
-            params.add(likeKeyword);
-        }
+        String matchQuery = toMatchQuery(keyword);
+        StringBuilder sql = selectProducts(matchQuery, params);
+        appendFilters(sql, params, categoryId, keyword, matchQuery, onlyActive);
 
         // Sorting
         if (sort != null) {
@@ -64,10 +127,10 @@ public class ProductDao {
                     sql.append(" ORDER BY p.created_at DESC");
                     break;
                 default:
-                    sql.append(" ORDER BY p.id DESC");
+                    sql.append(matchQuery != null ? RELEVANCE_ORDER : " ORDER BY p.id DESC");
             }
         } else {
-            sql.append(" ORDER BY p.id DESC");
+            sql.append(matchQuery != null ? RELEVANCE_ORDER : " ORDER BY p.id DESC");
         }
 
         sql.append(" LIMIT ? OFFSET ?");
@@ -81,7 +144,7 @@ public class ProductDao {
             }
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    products.add(mapResultSet(rs));
+                    products.add(mapSearchResult(rs, matchQuery != null));
                 }
             }
         } catch (SQLException e) {
@@ -90,25 +153,52 @@ public class ProductDao {
         return products;
     }
 
-    public int count(Integer categoryId, String keyword, Boolean onlyActive) {
-        StringBuilder sql = new StringBuilder("SELECT COUNT(*) FROM products p WHERE 1=1");
+    /**
+     * Keyset variant of findAll: returns up to pageSize products that come
+     * after the cursor in the requested sort order, so a deep page costs the
+     * same as the first. Keyword searches follow the requested sort (newest
+     * id first by default) rather than relevance, as bm25 scores make poor
+     * cursor keys.
+     */
+    public CursorPage<Product> findPage(Cursor after, int pageSize, Integer categoryId, String keyword, String sort, Boolean onlyActive) {
         List<Object> params = new ArrayList<>();
+        String matchQuery = toMatchQuery(keyword);
+        StringBuilder sql = selectProducts(matchQuery, params);
+        appendFilters(sql, params, categoryId, keyword, matchQuery, onlyActive);
 
-        if (onlyActive != null && onlyActive) {
-            sql.append(" AND p.status = 1");
+        String column = sortColumn(sort);
+        String direction = "price_asc".equals(sort) ? "ASC" : "DESC";
+        if (after != null) {
+            String op = direction.equals("ASC") ? ">" : "<";
+            if (column.equals("id")) {
+                sql.append(" AND p.id ").append(op).append(" ?");
+            } else {
+                sql.append(" AND (p.").append(column).append(", p.id) ").append(op).append(" (?, ?)");
+                params.add(after.getKey());
+            }
+            params.add(after.getId());
         }
-
-        if (categoryId != null && categoryId > 0) {
-            sql.append(" AND p.category_id = ?");
-            params.add(categoryId);
+        sql.append(" ORDER BY p.").append(column).append(' ').append(direction);
+        if (!column.equals("id")) {
+            sql.append(", p.id ").append(direction);
         }
+        return KeysetQuery.fetch(sql, params, pageSize, column,
+                rs -> mapSearchResult(rs, matchQuery != null), Product::getId);
+    }
 
-        if (keyword != null && !keyword.isEmpty()) {
-            sql.append(" AND (p.name LIKE ? OR p.description LIKE ?)");
-            String likeKeyword = "%" + keyword + "%";
-            params.add(likeKeyword);
-            params.add(likeKeyword);
+    public int count(Integer categoryId, String keyword, Boolean onlyActive) {
+        List<Object> params = new ArrayList<>();
+        String matchQuery = toMatchQuery(keyword);
+        StringBuilder sql;
+        if (matchQuery != null) {
+            sql = new StringBuilder(
+                "SELECT COUNT(*) FROM products_fts JOIN products p ON p.id = products_fts.rowid WHERE products_fts MATCH ?"
+            );
+            params.add(matchQuery);
+        } else {
+            sql = new StringBuilder("SELECT COUNT(*) FROM products p WHERE 1=1");
         }
+        appendFilters(sql, params, categoryId, keyword, matchQuery, onlyActive);
 
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
@@ -126,6 +216,58 @@ public class ProductDao {
         return 0;
     }
 
+    private StringBuilder selectProducts(String matchQuery, List<Object> params) {
+        if (matchQuery == null) {
+            return new StringBuilder(
+                "SELECT p.*, c.name as category_name FROM products p LEFT JOIN categories c ON p.category_id = c.id WHERE 1=1"
+            );
+        }
+        params.add(matchQuery);
+        return new StringBuilder(
+            "SELECT p.*, c.name as category_name, " +
+            "highlight(products_fts, 0, char(2), char(3)) AS name_highlight, " +
+            "snippet(products_fts, 1, char(2), char(3), '...', 24) AS description_snippet " +
+            "FROM products_fts JOIN products p ON p.id = products_fts.rowid " +
+            "LEFT JOIN categories c ON p.category_id = c.id WHERE products_fts MATCH ?"
+        );
+    }
+
+    private void appendFilters(StringBuilder sql, List<Object> params, Integer categoryId, String keyword,
+                               String matchQuery, Boolean onlyActive) {
+        if (onlyActive != null && onlyActive) {
+            sql.append(" AND p.status = 1");
+        }
+
+        if (categoryId != null && categoryId > 0) {
+            sql.append(" AND p.category_id = ?");
+            params.add(categoryId);
+        }
+
+        if (matchQuery == null && keyword != null && !keyword.isEmpty()) {
+            sql.append(" AND (p.name LIKE ? OR p.description LIKE ?)");
+            String likeKeyword = "%" + keyword + "%";
+            params.add(likeKeyword);
+            params.add(likeKeyword);
+        }
+    }
+
+    private static String sortColumn(String sort) {
+        if (sort == null) {
+            return "id";
+        }
+        switch (sort) {
+            case "price_asc":
+            case "price_desc":
+                return "price";
+            case "sales":
+                return "sales";
+            case "newest":
+                return "created_at";
+            default:
+                return "id";
+        }
+    }
+
     public int countTotal() {
         String sql = "SELECT COUNT(*) FROM products";
         try (Connection conn = DatabaseUtil.getConnection();
@@ -141,115 +283,269 @@ public class ProductDao {
     }
 
     public List<Product> findHotProducts(int limit) {
-        return findAll(1, limit, null, null, "sales", true);
+        return findHotProducts(limit, null);
+    }
+
+    // Ranked in memory; rows come from the product cache
+    public List<Product> findHotProducts(int limit, Integer categoryId) {
+        return activeOnly(findByIds(ProductLeaderboard.topHot(limit, categoryId)));
     }
 
     public List<Product> findNewProducts(int limit) {
-        return findAll(1, limit, null, null, "newest", true);
+        return findNewProducts(limit, null);
+    }
+
+    public List<Product> findNewProducts(int limit, Integer categoryId) {
+        return activeOnly(findByIds(ProductLeaderboard.topNew(limit, categoryId)));
     }
 
     public List<Product> findRecommended(int limit) {
-        // Simple recommendation: random active products
-        List<Product> products = new ArrayList<>();
-        String sql = "SELECT p.*, c.name as category_name FROM products p LEFT JOIN categories c ON p.category_id = c.id WHERE p.status = 1 ORDER BY RANDOM() LIMIT ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, limit);
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    products.add(mapResultSet(rs));
+        return findRecommended(limit, false);
+    }
+
+    /**
+     * Random active products, optionally weighted by sales. Ids come from the
+     * in-memory sampler and rows from the product cache or one primary key
+     * lookup, instead of ORDER BY RANDOM() over the whole table.
+     */
+    public List<Product> findRecommended(int limit, boolean weighted) {
+        return activeOnly(findByIds(ProductSampler.sample(limit, weighted)));
+    }
+
+    private static List<Product> activeOnly(List<Product> products) {
+        products.removeIf(product -> product.getStatus() != 1);
+        return products;
+    }
+
+    /** Products by id in the given order, from the cache or chunked IN queries; missing ids are skipped. */
+    public List<Product> findByIds(int[] ids) {
+        Map<Integer, Product> found = new HashMap<>();
+        List<Integer> missing = new ArrayList<>();
+        for (int id : ids) {
+            Product cached = productCache.get(id);
+            if (cached != null) {
+                found.put(id, copy(cached));
+            } else {
+                missing.add(id);
+            }
+        }
+
+        for (int from = 0; from < missing.size(); from += MAX_IN_PARAMS) {
+            List<Integer> chunk = missing.subList(from, Math.min(from + MAX_IN_PARAMS, missing.size()));
+            StringBuilder sql = new StringBuilder(
+                "SELECT p.*, c.name as category_name FROM products p LEFT JOIN categories c ON p.category_id = c.id WHERE p.id IN ("
+            );
+            for (int i = 0; i < chunk.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(")");
+
+            long loadedAt = currentGeneration();
+            try (Connection conn = DatabaseUtil.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    stmt.setInt(i + 1, chunk.get(i));
                 }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        Product product = mapResultSet(rs);
+                        found.put(product.getId(), product);
+                        cacheIfCurrent(loadedAt, () -> productCache.put(product.getId(), copy(product)));
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Keep the sampled order
+        List<Product> products = new ArrayList<>(found.size());
+        for (int id : ids) {
+            Product product = found.get(id);
+            if (product != null) {
+                products.add(product);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
         return products;
     }
 
     public int create(Product product) {
         String sql = "INSERT INTO products (name, description, price, original_price, stock, images, category_id, sales, status) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            stmt.setString(1, product.getName());
-            stmt.setString(2, product.getDescription());
-            stmt.setDouble(3, product.getPrice());
-            stmt.setDouble(4, product.getOriginalPrice());
-            stmt.setInt(5, product.getStock());
-            stmt.setString(6, product.getImages());
-            stmt.setInt(7, product.getCategoryId());
-            stmt.setInt(8, product.getSales());
-            stmt.setInt(9, product.getStatus());
-            stmt.executeUpdate();
-
-            try (ResultSet rs = stmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    return rs.getInt(1);
+        int id = -1;
+        try {
+            id = DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    stmt.setString(1, product.getName());
+                    stmt.setString(2, product.getDescription());
+                    stmt.setDouble(3, product.getPrice());
+                    stmt.setDouble(4, product.getOriginalPrice());
+                    stmt.setInt(5, product.getStock());
+                    stmt.setString(6, product.getImages());
+                    stmt.setInt(7, product.getCategoryId());
+                    stmt.setInt(8, product.getSales());
+                    stmt.setInt(9, product.getStatus());
+                    stmt.executeUpdate();
+
+                    try (ResultSet rs = stmt.getGeneratedKeys()) {
+                        if (rs.next()) {
+                            return rs.getInt(1);
+                        }
+                    }
                 }
-            }
+                return -1;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            // Rankings first: the version bump is what tells cached /hot and /new responses to rebuild
+            if (id > 0) {
+                ProductLeaderboard.refresh(id);
+            }
+            catalogChanged();
         }
-        return -1;
+        return id;
     }
 
     public boolean update(Product product) {
-        String sql = "UPDATE products SET name = ?, description = ?, price = ?, original_price = ?, stock = ?, images = ?, category_id = ?, status = ?, updated_at = CURRENT_TIMESTAMP WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, product.getName());
-            stmt.setString(2, product.getDescription());
-            stmt.setDouble(3, product.getPrice());
-            stmt.setDouble(4, product.getOriginalPrice());
-            stmt.setInt(5, product.getStock());
-            stmt.setString(6, product.getImages());
-            stmt.setInt(7, product.getCategoryId());
-            stmt.setInt(8, product.getStatus());
-            stmt.setInt(9, product.getId());
-            return stmt.executeUpdate() > 0;
+        // Stock isn't overwritten in place; the difference goes to the ledger in the same transaction
+        String sql = "UPDATE products SET name = ?, description = ?, price = ?, original_price = ?, images = ?, category_id = ?, status = ?, updated_at = CURRENT_TIMESTAMP WHERE id = ?";
+        long[] stockDelta = new long[1];
+        StockLedger.track(product.getId());
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setString(1, product.getName());
+                    stmt.setString(2, product.getDescription());
+                    stmt.setDouble(3, product.getPrice());
+                    stmt.setDouble(4, product.getOriginalPrice());
+                    stmt.setString(5, product.getImages());
+                    stmt.setInt(6, product.getCategoryId());
+                    stmt.setInt(7, product.getStatus());
+                    stmt.setInt(8, product.getId());
+                    if (stmt.executeUpdate() == 0) {
+                        return false;
+                    }
+                }
+                stockDelta[0] = StockLedger.set(conn, product.getId(), product.getStock());
+                return true;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+            StockLedger.undo(product.getId(), stockDelta[0]);
+        } finally {
+            ProductLeaderboard.refresh(product.getId());
+            invalidate(product.getId());
         }
         return false;
     }
 
-    public boolean updateStock(int productId, int quantity) {
-        String sql = "UPDATE products SET stock = stock + ?, updated_at = CURRENT_TIMESTAMP WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, quantity);
-            stmt.setInt(2, productId);
-            return stmt.executeUpdate() > 0;
-        } catch (SQLException e) {
-            e.printStackTrace();
+    // Appends to the stock ledger under the caller's StockLedger.REASON_*; the compactor folds it into the row later
+    public boolean updateStock(int productId, int quantity, String reason) {
+        try {
+            return StockLedger.adjust(productId, quantity, reason);
+        } finally {
+            invalidate(productId);
         }
-        return false;
     }
 
     public boolean updateSales(int productId, int quantity) {
         String sql = "UPDATE products SET sales = sales + ?, updated_at = CURRENT_TIMESTAMP WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, quantity);
-            stmt.setInt(2, productId);
-            return stmt.executeUpdate() > 0;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, quantity);
+                    stmt.setInt(2, productId);
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            ProductLeaderboard.refresh(productId);
+            invalidate(productId);
         }
         return false;
     }
 
     public boolean delete(int id) {
         String sql = "DELETE FROM products WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, id);
-            return stmt.executeUpdate() > 0;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setInt(1, id);
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            ProductLeaderboard.remove(id);
+            invalidate(id);
         }
         return false;
     }
 
+    /**
+     * Turns a search keyword into an FTS5 query: each whitespace-separated
+     * term becomes a quoted phrase and all terms must match. Returns null when
+     * a term is too short for the trigram index, in which case callers fall
+     * back to LIKE.
+     */
+    private static String toMatchQuery(String keyword) {
+        if (keyword == null || keyword.trim().isEmpty()) {
+            return null;
+        }
+        StringBuilder query = new StringBuilder();
+        for (String term : keyword.trim().split("\\s+")) {
+            if (term.codePointCount(0, term.length()) < MIN_TRIGRAM_LENGTH) {
+                return null;
+            }
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            query.append('"').append(term.replace("\"", "\"\"")).append('"');
+        }
+        return query.toString();
+    }
+
+    // Cached instances are never handed out: callers mutate the products they get
+    private static Product copy(Product source) {
+        Product product = new Product();
+        product.setId(source.getId());
+        product.setName(source.getName());
+        product.setDescription(source.getDescription());
+        product.setPrice(source.getPrice());
+        product.setOriginalPrice(source.getOriginalPrice());
+        product.setStock(source.getStock());
+        product.setImages(source.getImages());
+        product.setCategoryId(source.getCategoryId());
+        product.setCategoryName(source.getCategoryName());
+        product.setSales(source.getSales());
+        product.setStatus(source.getStatus());
+        product.setCreatedAt(source.getCreatedAt());
+        product.setUpdatedAt(source.getUpdatedAt());
+        product.setHighlight(source.getHighlight());
+        product.setSnippet(source.getSnippet());
+        return product;
+    }
+
+    private Product mapSearchResult(ResultSet rs, boolean withSearchColumns) throws SQLException {
+        Product product = mapResultSet(rs);
+        if (withSearchColumns) {
+            product.setHighlight(markMatches(rs.getString("name_highlight")));
+            product.setSnippet(markMatches(rs.getString("description_snippet")));
+        }
+        return product;
+    }
+
+    // FTS marks matches with control characters; the stored text is escaped and only the marks become tags
+    private static String markMatches(String marked) {
+        if (marked == null) {
+            return null;
+        }
+        return StringUtil.escapeHtml(marked).replace("\u0002", "<em>").replace("\u0003", "</em>");
+    }
+
     private Product mapResultSet(ResultSet rs) throws SQLException {
         Product product = new Product();
         product.setId(rs.getInt("id"));
@@ -257,7 +553,7 @@ public class ProductDao {
         product.setDescription(rs.getString("description"));
         product.setPrice(rs.getDouble("price"));
         product.setOriginalPrice(rs.getDouble("original_price"));
-        product.setStock(rs.getInt("stock"));
+        product.setStock(StockLedger.available(product.getId(), rs.getInt("stock")));
         product.setImages(rs.getString("images"));
         product.setCategoryId(rs.getInt("category_id"));
         product.setSales(rs.getInt("sales"));
@@ -0,0 +1,179 @@
+package com.lightshop.dao;
+
+import com.lightshop.util.DatabaseUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Hot (by sales) and new (by created_at) rankings of active products, global
+ * and per category. Built from the database once, then kept current by the
+ * ProductDao write methods, so reading the top N is a walk over a skip list
+ * with no SQL. Writers are serialized; readers never lock.
+ */
+class ProductLeaderboard {
+    private static final Comparator<Entry> BY_SALES = Comparator
+            .comparingLong((Entry e) -> e.sales).reversed()
+            .thenComparing(Comparator.comparingInt((Entry e) -> e.id).reversed());
+    private static final Comparator<Entry> BY_CREATED = Comparator
+            .comparingLong((Entry e) -> e.createdAt).reversed()
+            .thenComparing(Comparator.comparingInt((Entry e) -> e.id).reversed());
+
+    private static final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+    private static final Board hot = new Board(BY_SALES);
+    private static final Board newest = new Board(BY_CREATED);
+    private static volatile boolean loaded = false;
+
+    static synchronized void rebuild() {
+        entries.clear();
+        hot.clear();
+        newest.clear();
+        String sql = "SELECT id, category_id, sales, created_at FROM products WHERE status = 1";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                put(map(rs));
+            }
+            loaded = true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static int[] topHot(int limit, Integer categoryId) {
+        ensureLoaded();
+        return hot.top(limit, categoryId);
+    }
+
+    static int[] topNew(int limit, Integer categoryId) {
+        ensureLoaded();
+        return newest.top(limit, categoryId);
+    }
+
+    /**
+     * Re-reads one product after a write to it; drops it if it's gone or
+     * inactive. Reading the committed row rather than applying a delta keeps
+     * the entry exact even when the write raced a rebuild.
+     */
+    static synchronized void refresh(int productId) {
+        if (!loaded) {
+            return;
+        }
+        String sql = "SELECT id, category_id, sales, created_at FROM products WHERE id = ? AND status = 1";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, productId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                remove(productId);
+                if (rs.next()) {
+                    put(map(rs));
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            // Can't tell where it belongs any more; start over on the next read
+            loaded = false;
+        }
+    }
+
+    static synchronized void remove(int productId) {
+        Entry current = entries.remove(productId);
+        if (current != null) {
+            hot.remove(current);
+            newest.remove(current);
+        }
+    }
+
+    static int size() {
+        return entries.size();
+    }
+
+    private static void ensureLoaded() {
+        if (!loaded) {
+            synchronized (ProductLeaderboard.class) {
+                if (!loaded) {
+                    rebuild();
+                }
+            }
+        }
+    }
+
+    private static void put(Entry entry) {
+        entries.put(entry.id, entry);
+        hot.add(entry);
+        newest.add(entry);
+    }
+
+    private static Entry map(ResultSet rs) throws SQLException {
+        Timestamp createdAt = rs.getTimestamp("created_at");
+        return new Entry(rs.getInt("id"), rs.getInt("category_id"), rs.getLong("sales"),
+                createdAt != null ? createdAt.getTime() : 0);
+    }
+
+    private static final class Entry {
+        private final int id;
+        private final int categoryId;
+        private final long sales;
+        private final long createdAt;
+
+        Entry(int id, int categoryId, long sales, long createdAt) {
+            this.id = id;
+            this.categoryId = categoryId;
+            this.sales = sales;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private static final class Board {
+        private final Comparator<Entry> order;
+        private final NavigableSet<Entry> global;
+        private final ConcurrentHashMap<Integer, NavigableSet<Entry>> byCategory = new ConcurrentHashMap<>();
+
+        Board(Comparator<Entry> order) {
+            this.order = order;
+            this.global = new ConcurrentSkipListSet<>(order);
+        }
+
+        void add(Entry entry) {
+            global.add(entry);
+            byCategory.computeIfAbsent(entry.categoryId, c -> new ConcurrentSkipListSet<>(order)).add(entry);
+        }
+
+        void remove(Entry entry) {
+            global.remove(entry);
+            NavigableSet<Entry> category = byCategory.get(entry.categoryId);
+            if (category != null) {
+                category.remove(entry);
+            }
+        }
+
+        void clear() {
+            global.clear();
+            byCategory.clear();
+        }
+
+        int[] top(int limit, Integer categoryId) {
+            NavigableSet<Entry> set = categoryId != null && categoryId > 0 ? byCategory.get(categoryId) : global;
+            if (set == null || limit <= 0) {
+                return new int[0];
+            }
+            int[] ids = new int[Math.min(limit, entries.size())];
+            int count = 0;
+            Iterator<Entry> it = set.iterator();
+            while (count < ids.length && it.hasNext()) {
+                ids[count++] = it.next().id;
+            }
+            return count == ids.length ? ids : Arrays.copyOf(ids, count);
+        }
+    }
+}
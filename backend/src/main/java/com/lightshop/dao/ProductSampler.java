@@ -0,0 +1,197 @@
+package com.lightshop.dao;
+
+import com.lightshop.util.DatabaseUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Random picks over the active product ids, kept in primitive arrays. Sales
+ * weighted draws use an alias table, so each draw is O(1). Catalog writes
+ * only mark the snapshot stale; it is rebuilt on the next draw, at most once
+ * per {@link #MIN_REFRESH_INTERVAL_MS}. Callers re-check status on the rows
+ * they load, so a briefly stale id is harmless.
+ */
+class ProductSampler {
+    private static final long MIN_REFRESH_INTERVAL_MS = 1_000;
+
+    private static volatile Snapshot snapshot = new Snapshot(new int[0], new long[0]);
+    private static volatile boolean stale = true;
+    private static long refreshedAt = 0;
+
+    static void markStale() {
+        stale = true;
+    }
+
+    static int[] sample(int limit, boolean weighted) {
+        Snapshot current = refreshIfStale();
+        int n = current.ids.length;
+        if (limit <= 0 || n == 0) {
+            return new int[0];
+        }
+        if (limit >= n) {
+            int[] all = current.ids.clone();
+            shuffle(all);
+            return all;
+        }
+        return weighted ? current.weightedSample(limit) : current.uniformSample(limit);
+    }
+
+    private static Snapshot refreshIfStale() {
+        if (!stale) {
+            return snapshot;
+        }
+        synchronized (ProductSampler.class) {
+            long now = System.currentTimeMillis();
+            if (stale && now - refreshedAt >= MIN_REFRESH_INTERVAL_MS) {
+                // Cleared before reading so a write that lands mid-load marks it stale again
+                stale = false;
+                refreshedAt = now;
+                Snapshot loaded = load();
+                if (loaded != null) {
+                    snapshot = loaded;
+                } else {
+                    stale = true;
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    private static Snapshot load() {
+        String sql = "SELECT id, sales FROM products WHERE status = 1 ORDER BY id";
+        int[] ids = new int[256];
+        long[] sales = new long[256];
+        int count = 0;
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                    sales = Arrays.copyOf(sales, count * 2);
+                }
+                ids[count] = rs.getInt(1);
+                sales[count] = Math.max(0, rs.getLong(2));
+                count++;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return new Snapshot(Arrays.copyOf(ids, count), Arrays.copyOf(sales, count));
+    }
+
+    private static void shuffle(int[] values) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = values[i];
+            values[i] = values[j];
+            values[j] = tmp;
+        }
+    }
+
+    private static final class Snapshot {
+        private final int[] ids;
+        // Vose alias table over (sales + 1), so unsold products still show up
+        private final double[] probability;
+        private final int[] alias;
+
+        Snapshot(int[] ids, long[] sales) {
+            this.ids = ids;
+            int n = ids.length;
+            this.probability = new double[n];
+            this.alias = new int[n];
+            if (n == 0) {
+                return;
+            }
+
+            double total = 0;
+            for (long s : sales) {
+                total += s + 1;
+            }
+            double[] scaled = new double[n];
+            ArrayDeque<Integer> small = new ArrayDeque<>();
+            ArrayDeque<Integer> large = new ArrayDeque<>();
+            for (int i = 0; i < n; i++) {
+                scaled[i] = (sales[i] + 1) * n / total;
+                if (scaled[i] < 1.0) {
+                    small.push(i);
+                } else {
+                    large.push(i);
+                }
+            }
+            while (!small.isEmpty() && !large.isEmpty()) {
+                int less = small.pop();
+                int more = large.pop();
+                probability[less] = scaled[less];
+                alias[less] = more;
+                scaled[more] = scaled[more] + scaled[less] - 1.0;
+                if (scaled[more] < 1.0) {
+                    small.push(more);
+                } else {
+                    large.push(more);
+                }
+            }
+            while (!large.isEmpty()) {
+                probability[large.pop()] = 1.0;
+            }
+            while (!small.isEmpty()) {
+                probability[small.pop()] = 1.0;
+            }
+        }
+
+        // Floyd's algorithm: exactly limit distinct indexes in limit steps
+        int[] uniformSample(int limit) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int n = ids.length;
+            Set<Integer> chosen = new HashSet<>(limit * 2);
+            int[] picked = new int[limit];
+            int count = 0;
+            for (int j = n - limit; j < n; j++) {
+                int t = random.nextInt(j + 1);
+                int index = chosen.add(t) ? t : j;
+                if (index == j) {
+                    chosen.add(j);
+                }
+                picked[count++] = ids[index];
+            }
+            shuffle(picked);
+            return picked;
+        }
+
+        // Draws without replacement; duplicates are redrawn, with a cap so
+        // a few dominant sellers can't make this loop for long
+        int[] weightedSample(int limit) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int n = ids.length;
+            Set<Integer> chosen = new HashSet<>(limit * 2);
+            int[] picked = new int[limit];
+            int count = 0;
+            int attempts = limit * 8;
+            while (count < limit && attempts-- > 0) {
+                int column = random.nextInt(n);
+                int index = random.nextDouble() < probability[column] ? column : alias[column];
+                if (chosen.add(index)) {
+                    picked[count++] = ids[index];
+                }
+            }
+            // Top up uniformly if the cap was hit
+            while (count < limit) {
+                int index = random.nextInt(n);
+                if (chosen.add(index)) {
+                    picked[count++] = ids[index];
+                }
+            }
+            return picked;
+        }
+    }
+}
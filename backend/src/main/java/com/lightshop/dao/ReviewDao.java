@@ -1,7 +1,10 @@
 package com.lightshop.dao;
 
 import com.lightshop.model.Review;
+import com.lightshop.util.Cursor;
+import com.lightshop.util.CursorPage;
 import com.lightshop.util.DatabaseUtil;
+import com.lightshop.util.TableVersions;
 
 import java.sql.*;
 import java.util.ArrayList;
@@ -30,6 +33,21 @@ public class ReviewDao {
         return reviews;
     }
 
+    /**
+     * Keyset variant of findByProductId: newest first, continuing after the
+     * cursor instead of skipping an offset.
+     */
+    public CursorPage<Review> findPageByProductId(int productId, Cursor after, int pageSize) {
+        StringBuilder sql = new StringBuilder(
+            "SELECT r.*, u.username, u.avatar as user_avatar " +
+            "FROM reviews r JOIN users u ON r.user_id = u.id WHERE r.product_id = ?"
+        );
+        List<Object> params = new ArrayList<>();
+        params.add(productId);
+        KeysetQuery.newestFirst(sql, params, after, "r.");
+        return KeysetQuery.fetch(sql, params, pageSize, "created_at", this::mapResultSet, Review::getId);
+    }
+
     public Review findByOrderItemId(int orderItemId) {
         String sql = "SELECT r.*, u.username, u.avatar as user_avatar FROM reviews r JOIN users u ON r.user_id = u.id WHERE r.order_item_id = ?";
         try (Connection conn = DatabaseUtil.getConnection();
@@ -48,24 +66,30 @@ public class ReviewDao {
 
     public int create(Review review) {
         String sql = "INSERT INTO reviews (order_id, order_item_id, user_id, product_id, rating, content, images) VALUES (?, ?, ?, ?, ?, ?, ?)";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            stmt.setInt(1, review.getOrderId());
-            stmt.setInt(2, review.getOrderItemId());
-            stmt.setInt(3, review.getUserId());
-            stmt.setInt(4, review.getProductId());
-            stmt.setInt(5, review.getRating());
-            stmt.setString(6, review.getContent());
-            stmt.setString(7, review.getImages());
-            stmt.executeUpdate();
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    stmt.setInt(1, review.getOrderId());
+                    stmt.setInt(2, review.getOrderItemId());
+                    stmt.setInt(3, review.getUserId());
+                    stmt.setInt(4, review.getProductId());
+                    stmt.setInt(5, review.getRating());
+                    stmt.setString(6, review.getContent());
+                    stmt.setString(7, review.getImages());
+                    stmt.executeUpdate();
 
-            try (ResultSet rs = stmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    return rs.getInt(1);
+                    try (ResultSet rs = stmt.getGeneratedKeys()) {
+                        if (rs.next()) {
+                            return rs.getInt(1);
+                        }
+                    }
                 }
-            }
+                return -1;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            TableVersions.bump(TableVersions.REVIEWS);
         }
         return -1;
     }
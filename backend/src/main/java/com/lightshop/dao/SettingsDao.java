@@ -2,6 +2,7 @@ package com.lightshop.dao;
 
 import com.lightshop.model.Settings;
 import com.lightshop.util.DatabaseUtil;
+import com.lightshop.util.TableVersions;
 
 import java.sql.*;
 
@@ -29,19 +30,24 @@ public class SettingsDao {
             "site_name = excluded.site_name, logo = excluded.logo, description = excluded.description, " +
             "keywords = excluded.keywords, contact_phone = excluded.contact_phone, contact_email = excluded.contact_email, " +
             "address = excluded.address, copyright = excluded.copyright";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, settings.getSiteName());
-            stmt.setString(2, settings.getLogo());
-            stmt.setString(3, settings.getDescription());
-            stmt.setString(4, settings.getKeywords());
-            stmt.setString(5, settings.getContactPhone());
-            stmt.setString(6, settings.getContactEmail());
-            stmt.setString(7, settings.getAddress());
-            stmt.setString(8, settings.getCopyright());
-            return stmt.executeUpdate() > 0;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setString(1, settings.getSiteName());
+                    stmt.setString(2, settings.getLogo());
+                    stmt.setString(3, settings.getDescription());
+                    stmt.setString(4, settings.getKeywords());
+                    stmt.setString(5, settings.getContactPhone());
+                    stmt.setString(6, settings.getContactEmail());
+                    stmt.setString(7, settings.getAddress());
+                    stmt.setString(8, settings.getCopyright());
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            TableVersions.bump(TableVersions.SETTINGS);
         }
         return false;
     }
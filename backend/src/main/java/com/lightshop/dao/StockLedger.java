@@ -0,0 +1,285 @@
+package com.lightshop.dao;
+
+import com.lightshop.model.OrderItem;
+import com.lightshop.util.DatabaseUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only stock ledger. Stock changes are rows in stock_movements rather
+ * than in-place updates of the product row; the available stock of a product
+ * is products.stock plus its unfolded movements, and is kept in memory so
+ * checks and reservations are a CAS. A background compactor periodically
+ * folds the movements into products.stock and marks them folded, leaving
+ * them in place as the audit trail.
+ *
+ * Deductions reserve in memory before the write and give the reservation
+ * back if it fails; additions are credited only after they commit.
+ */
+public class StockLedger {
+    public static final String REASON_ORDER = "order";
+    public static final String REASON_CANCEL = "cancel";
+    public static final String REASON_RESTOCK = "restock";
+    public static final String REASON_ADJUST = "adjust";
+
+    private static final long DEFAULT_COMPACT_INTERVAL_MS = 5_000;
+    private static final String INSERT_SQL =
+            "INSERT INTO stock_movements (product_id, delta, reason, order_id) VALUES (?, ?, ?, ?)";
+
+    private static final ConcurrentHashMap<Integer, AtomicLong> balances = new ConcurrentHashMap<>();
+    private static final AtomicLong appended = new AtomicLong();
+    private static final AtomicLong folded = new AtomicLong();
+    private static final AtomicLong compactions = new AtomicLong();
+
+    private static volatile Thread compactor;
+    private static volatile boolean running = false;
+    private static long compactIntervalMs = DEFAULT_COMPACT_INTERVAL_MS;
+
+    public static synchronized void start() {
+        if (running) {
+            return;
+        }
+        compactIntervalMs = Math.max(100, DatabaseUtil.getEnvLong("STOCK_COMPACT_INTERVAL_MS", DEFAULT_COMPACT_INTERVAL_MS));
+        // Fold what a previous run left behind, so untracked products can be read from the row
+        compact();
+        running = true;
+        compactor = new Thread(StockLedger::run, "lightshop-stock-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    public static synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        compactor.interrupt();
+        try {
+            compactor.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compact();
+    }
+
+    /** Available stock of a product, given the products.stock value read with it. */
+    static int available(int productId, int rowStock) {
+        AtomicLong balance = balances.get(productId);
+        return balance != null ? (int) balance.get() : rowStock;
+    }
+
+    /**
+     * Takes the quantities of all items out of the available stock, or none
+     * of them if any product is short.
+     */
+    static boolean reserve(List<OrderItem> items) {
+        for (int i = 0; i < items.size(); i++) {
+            OrderItem item = items.get(i);
+            AtomicLong balance = balance(item.getProductId());
+            long current;
+            do {
+                current = balance.get();
+                if (current < item.getQuantity()) {
+                    release(items.subList(0, i));
+                    return false;
+                }
+            } while (!balance.compareAndSet(current, current - item.getQuantity()));
+        }
+        return true;
+    }
+
+    /** Gives back a reservation whose write did not commit. */
+    static void release(List<OrderItem> items) {
+        for (OrderItem item : items) {
+            balance(item.getProductId()).addAndGet(item.getQuantity());
+        }
+    }
+
+    /**
+     * Loads the balances of the items' products ahead of a write that adds
+     * to them, so the load can't already include the movement being credited.
+     */
+    static void track(List<OrderItem> items) {
+        for (OrderItem item : items) {
+            balance(item.getProductId());
+        }
+    }
+
+    static void track(int productId) {
+        balance(productId);
+    }
+
+    /** Adds committed movements to the available stock; track() them before the write. */
+    static void credit(List<OrderItem> items) {
+        release(items);
+    }
+
+    /**
+     * Records the order's deductions inside the caller's transaction. Returns
+     * the id of a product that is missing or inactive, or 0 if all were recorded.
+     */
+    static int appendOrder(Connection conn, int orderId, List<OrderItem> items) throws SQLException {
+        String sql = "INSERT INTO stock_movements (product_id, delta, reason, order_id) " +
+                "SELECT id, ?, ?, ? FROM products WHERE id = ? AND status = 1";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (OrderItem item : items) {
+                stmt.setInt(1, -item.getQuantity());
+                stmt.setString(2, REASON_ORDER);
+                stmt.setInt(3, orderId);
+                stmt.setInt(4, item.getProductId());
+                if (stmt.executeUpdate() == 0) {
+                    return item.getProductId();
+                }
+            }
+        }
+        appended.addAndGet(items.size());
+        return 0;
+    }
+
+    /** Records restored quantities inside the caller's transaction; credit them after commit. */
+    static void appendReturn(Connection conn, int orderId, List<OrderItem> items) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(INSERT_SQL)) {
+            for (OrderItem item : items) {
+                stmt.setInt(1, item.getProductId());
+                stmt.setInt(2, item.getQuantity());
+                stmt.setString(3, REASON_CANCEL);
+                stmt.setInt(4, orderId);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+        appended.addAndGet(items.size());
+    }
+
+    /** Appends a standalone movement of delta (either sign) for one product. */
+    static boolean adjust(int productId, int delta, String reason) {
+        AtomicLong balance = balance(productId);
+        if (delta < 0) {
+            balance.addAndGet(delta);
+        }
+        try {
+            DatabaseUtil.executeWrite(conn -> {
+                insert(conn, productId, delta, reason);
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            if (delta < 0) {
+                balance.addAndGet(-delta);
+            }
+            return false;
+        }
+        if (delta > 0) {
+            balance.addAndGet(delta);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the available stock to target by appending the difference inside
+     * the caller's writer task, and returns it; undo() it if the transaction
+     * fails. Taken on the writer thread, the difference accounts for every
+     * movement committed before it. track() the product before the write.
+     */
+    static long set(Connection conn, int productId, int target) throws SQLException {
+        AtomicLong balance = balance(productId);
+        long difference = target - balance.get();
+        if (difference != 0) {
+            insert(conn, productId, difference, REASON_ADJUST);
+            balance.addAndGet(difference);
+        }
+        return difference;
+    }
+
+    /** Takes back a set() whose transaction did not commit. */
+    static void undo(int productId, long difference) {
+        balance(productId).addAndGet(-difference);
+    }
+
+    /** Folds every unfolded movement into products.stock in one transaction. */
+    public static int compact() {
+        String foldSql = "UPDATE products SET stock = stock + " +
+                "(SELECT SUM(m.delta) FROM stock_movements m WHERE m.product_id = products.id AND m.folded = 0) " +
+                "WHERE id IN (SELECT product_id FROM stock_movements WHERE folded = 0)";
+        String markSql = "UPDATE stock_movements SET folded = 1 WHERE folded = 0";
+        try {
+            int count = DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement fold = conn.prepareStatement(foldSql);
+                     PreparedStatement mark = conn.prepareStatement(markSql)) {
+                    fold.executeUpdate();
+                    return mark.executeUpdate();
+                }
+            });
+            if (count > 0) {
+                folded.addAndGet(count);
+                compactions.incrementAndGet();
+            }
+            return count;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("running", running);
+        stats.put("trackedProducts", balances.size());
+        stats.put("appended", appended.get());
+        stats.put("folded", folded.get());
+        stats.put("compactions", compactions.get());
+        return stats;
+    }
+
+    private static void insert(Connection conn, int productId, long delta, String reason) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(INSERT_SQL)) {
+            stmt.setInt(1, productId);
+            stmt.setLong(2, delta);
+            stmt.setString(3, reason);
+            stmt.setNull(4, Types.INTEGER);
+            stmt.executeUpdate();
+        }
+        appended.incrementAndGet();
+    }
+
+    // Loaded on first use; every movement goes through here first, so the
+    // load can't miss one made by this process
+    private static AtomicLong balance(int productId) {
+        return balances.computeIfAbsent(productId, StockLedger::load);
+    }
+
+    private static AtomicLong load(int productId) {
+        String sql = "SELECT p.stock + COALESCE((SELECT SUM(m.delta) FROM stock_movements m " +
+                "WHERE m.product_id = p.id AND m.folded = 0), 0) FROM products p WHERE p.id = ?";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, productId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return new AtomicLong(rs.next() ? rs.getLong(1) : 0);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to load stock of product " + productId, e);
+        }
+    }
+
+    private static void run() {
+        while (running) {
+            try {
+                Thread.sleep(compactIntervalMs);
+            } catch (InterruptedException e) {
+                // Shutdown requested; shutdown() runs the final fold
+                return;
+            }
+            compact();
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.lightshop.dao;
 
 import com.lightshop.model.User;
+import com.lightshop.util.Cursor;
+import com.lightshop.util.CursorPage;
 import com.lightshop.util.DatabaseUtil;
 
 import java.sql.*;
@@ -59,23 +61,27 @@ public class UserDao {
 
     public int create(User user) {
         String sql = "INSERT INTO users (username, password, email, phone, avatar, balance, role, status) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            stmt.setString(1, user.getUsername());
-            stmt.setString(2, user.getPassword());
-            stmt.setString(3, user.getEmail());
-            stmt.setString(4, user.getPhone());
-            stmt.setString(5, user.getAvatar());
-            stmt.setDouble(6, user.getBalance());
-            stmt.setInt(7, user.getRole());
-            stmt.setInt(8, user.getStatus());
-            stmt.executeUpdate();
-
-            try (ResultSet rs = stmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    return rs.getInt(1);
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    stmt.setString(1, user.getUsername());
+                    stmt.setString(2, user.getPassword());
+                    stmt.setString(3, user.getEmail());
+                    stmt.setString(4, user.getPhone());
+                    stmt.setString(5, user.getAvatar());
+                    stmt.setDouble(6, user.getBalance());
+                    stmt.setInt(7, user.getRole());
+                    stmt.setInt(8, user.getStatus());
+                    stmt.executeUpdate();
+
+                    try (ResultSet rs = stmt.getGeneratedKeys()) {
+                        if (rs.next()) {
+                            return rs.getInt(1);
+                        }
+                    }
                 }
-            }
+                return -1;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -84,17 +90,39 @@ public class UserDao {
 
     public boolean update(User user) {
         String sql = "UPDATE users SET username = ?, email = ?, phone = ?, avatar = ?, balance = ?, role = ?, status = ?, updated_at = CURRENT_TIMESTAMP WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, user.getUsername());
-            stmt.setString(2, user.getEmail());
-            stmt.setString(3, user.getPhone());
-            stmt.setString(4, user.getAvatar());
-            stmt.setDouble(5, user.getBalance());
-            stmt.setInt(6, user.getRole());
-            stmt.setInt(7, user.getStatus());
-            stmt.setInt(8, user.getId());
-            return stmt.executeUpdate() > 0;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setString(1, user.getUsername());
+                    stmt.setString(2, user.getEmail());
+                    stmt.setString(3, user.getPhone());
+                    stmt.setString(4, user.getAvatar());
+                    stmt.setDouble(5, user.getBalance());
+                    stmt.setInt(6, user.getRole());
+                    stmt.setInt(7, user.getStatus());
+                    stmt.setInt(8, user.getId());
+                    return stmt.executeUpdate() > 0;
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    // Profile fields only, so balance, role and status changed meanwhile aren't overwritten
+    public boolean updateProfile(User user) {
+        String sql = "UPDATE users SET email = ?, phone = ?, avatar = ?, updated_at = CURRENT_TIMESTAMP WHERE id = ?";
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setString(1, user.getEmail());
+                    stmt.setString(2, user.getPhone());
+                    stmt.setString(3, user.getAvatar());
+                    stmt.setInt(4, user.getId());
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -103,11 +131,14 @@ public class UserDao {
 
     public boolean updatePassword(int userId, String hashedPassword) {
         String sql = "UPDATE users SET password = ?, updated_at = CURRENT_TIMESTAMP WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, hashedPassword);
-            stmt.setInt(2, userId);
-            return stmt.executeUpdate() > 0;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setString(1, hashedPassword);
+                    stmt.setInt(2, userId);
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -116,11 +147,14 @@ public class UserDao {
 
     public boolean updateBalance(int userId, double amount) {
         String sql = "UPDATE users SET balance = balance + ?, updated_at = CURRENT_TIMESTAMP WHERE id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setDouble(1, amount);
-            stmt.setInt(2, userId);
-            return stmt.executeUpdate() > 0;
+        try {
+            return DatabaseUtil.executeWrite(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setDouble(1, amount);
+                    stmt.setInt(2, userId);
+                    return stmt.executeUpdate() > 0;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -131,14 +165,7 @@ public class UserDao {
         List<User> users = new ArrayList<>();
         StringBuilder sql = new StringBuilder("SELECT * FROM users WHERE 1=1");
         List<Object> params = new ArrayList<>();
-
-        if (keyword != null && !keyword.isEmpty()) {
-            sql.append(" AND (username LIKE ? OR email LIKE ? OR phone LIKE ?)");
-            String likeKeyword = "%" + keyword + "%";
-            params.add(likeKeyword);
-            params.add(likeKeyword);
-            params.add(likeKeyword);
-        }
+        appendKeyword(sql, params, keyword);
 
         sql.append(" ORDER BY created_at DESC LIMIT ? OFFSET ?");
         params.add(pageSize);
@@ -160,17 +187,22 @@ public class UserDao {
         return users;
     }
 
+    /**
+     * Keyset variant of findAll: newest first, continuing after the cursor
+     * instead of skipping an offset.
+     */
+    public CursorPage<User> findPage(Cursor after, int pageSize, String keyword) {
+        StringBuilder sql = new StringBuilder("SELECT * FROM users WHERE 1=1");
+        List<Object> params = new ArrayList<>();
+        appendKeyword(sql, params, keyword);
+        KeysetQuery.newestFirst(sql, params, after, "");
+        return KeysetQuery.fetch(sql, params, pageSize, "created_at", this::mapResultSet, User::getId);
+    }
+
     public int count(String keyword) {
         StringBuilder sql = new StringBuilder("SELECT COUNT(*) FROM users WHERE 1=1");
         List<Object> params = new ArrayList<>();
-
-        if (keyword != null && !keyword.isEmpty()) {
-            sql.append(" AND (username LIKE ? OR email LIKE ? OR phone LIKE ?)");
-            String likeKeyword = "%" + keyword + "%";
-            params.add(likeKeyword);
-            params.add(likeKeyword);
-            params.add(likeKeyword);
-        }
+        appendKeyword(sql, params, keyword);
 
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
@@ -188,6 +220,16 @@ public class UserDao {
         return 0;
     }
 
+    private void appendKeyword(StringBuilder sql, List<Object> params, String keyword) {
+        if (keyword != null && !keyword.isEmpty()) {
+            sql.append(" AND (username LIKE ? OR email LIKE ? OR phone LIKE ?)");
+            String likeKeyword = "%" + keyword + "%";
+            params.add(likeKeyword);
+            params.add(likeKeyword);
+            params.add(likeKeyword);
+        }
+    }
+
     public int countTotal() {
         String sql = "SELECT COUNT(*) FROM users";
         try (Connection conn = DatabaseUtil.getConnection();
@@ -1,5 +1,6 @@
 package com.lightshop.filter;
 
+import com.lightshop.util.AuthPrincipal;
 import com.lightshop.util.JsonUtil;
 import com.lightshop.util.JwtUtil;
 
@@ -62,28 +63,21 @@ public class AuthFilter implements Filter {
 
         String token = authHeader.substring(7);
 
-        // Validate token
-        if (!JwtUtil.validateToken(token)) {
+        // Verify the token once; everything downstream reads the principal
+        AuthPrincipal principal = JwtUtil.authenticate(token);
+        if (principal == null) {
             JsonUtil.writeError(httpResponse, 401, "登录已过期，请重新登录");
             return;
         }
 
         // Check admin permission
-        if (isAdminPath(path)) {
-            if (!JwtUtil.isAdmin(token)) {
-                JsonUtil.writeError(httpResponse, 403, "权限不足");
-                return;
-            }
+        if (isAdminPath(path) && !principal.isAdmin()) {
+            JsonUtil.writeError(httpResponse, 403, "权限不足");
+            return;
         }
 
-        // Set user info in request attributes
-        Integer userId = JwtUtil.getUserId(token);
-        String username = JwtUtil.getUsername(token);
-        Integer role = JwtUtil.getRole(token);
-
-        httpRequest.setAttribute("userId", userId);
-        httpRequest.setAttribute("username", username);
-        httpRequest.setAttribute("role", role);
+        // Servlets read the caller from the principal
+        httpRequest.setAttribute(AuthPrincipal.ATTRIBUTE, principal);
 
         chain.doFilter(request, response);
     }
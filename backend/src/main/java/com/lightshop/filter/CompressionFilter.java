@@ -0,0 +1,376 @@
+package com.lightshop.filter;
+
+import com.lightshop.util.DatabaseUtil;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Negotiates gzip/deflate from Accept-Encoding and compresses text responses
+ * as they are written. The first bytes are held back until the body is known
+ * to exceed the minimum size; smaller bodies go out unchanged.
+ */
+public class CompressionFilter implements Filter {
+    private static final AtomicLong compressedResponses = new AtomicLong();
+    private static final AtomicLong bytesIn = new AtomicLong();
+    private static final AtomicLong bytesOut = new AtomicLong();
+
+    private int level;
+    private int minSize;
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION,
+                DatabaseUtil.getEnvInt("COMPRESSION_LEVEL", 6)));
+        minSize = Math.max(0, DatabaseUtil.getEnvInt("COMPRESSION_MIN_SIZE", 1024));
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+
+        String encoding = "HEAD".equalsIgnoreCase(httpRequest.getMethod())
+                ? null : negotiate(httpRequest.getHeader("Accept-Encoding"));
+        if (encoding == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        httpResponse.addHeader("Vary", "Accept-Encoding");
+        CompressingResponse wrapped = new CompressingResponse(httpResponse, encoding);
+        try {
+            chain.doFilter(request, wrapped);
+        } finally {
+            if (request.isAsyncStarted()) {
+                // Async servlets write later; finish once they complete
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) throws IOException {
+                        wrapped.finish();
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            } else {
+                wrapped.finish();
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("compressedResponses", compressedResponses.get());
+        stats.put("bytesIn", bytesIn.get());
+        stats.put("bytesOut", bytesOut.get());
+        long in = bytesIn.get();
+        stats.put("ratio", in == 0 ? 0.0 : (double) bytesOut.get() / in);
+        return stats;
+    }
+
+    // Picks gzip or deflate, whichever has the higher q-value; gzip wins ties.
+    // Also used by ResponseCacheFilter to choose between its stored variants
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        double gzip = 0;
+        double deflate = 0;
+        for (String part : acceptEncoding.toLowerCase(Locale.ROOT).split(",")) {
+            String[] tokens = part.trim().split(";");
+            String coding = tokens[0].trim();
+            double q = 1.0;
+            for (int i = 1; i < tokens.length; i++) {
+                String param = tokens[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if ("gzip".equals(coding) || "x-gzip".equals(coding)) {
+                gzip = q;
+            } else if ("deflate".equals(coding)) {
+                deflate = q;
+            } else if ("*".equals(coding)) {
+                gzip = gzip == 0 ? q : gzip;
+            }
+        }
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? "gzip" : "deflate";
+    }
+
+    private static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/")
+                || type.contains("json")
+                || type.contains("javascript")
+                || type.contains("xml")
+                || type.startsWith("image/svg");
+    }
+
+    private final class CompressingResponse extends HttpServletResponseWrapper {
+        private final String encoding;
+        private CompressingStream stream;
+        private PrintWriter writer;
+
+        CompressingResponse(HttpServletResponse response, String encoding) {
+            super(response);
+            this.encoding = encoding;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            if (stream == null) {
+                stream = new CompressingStream((HttpServletResponse) getResponse(), encoding);
+            }
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (stream != null) {
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                }
+                stream = new CompressingStream((HttpServletResponse) getResponse(), encoding);
+                writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        // The length is only known once we decide whether to compress
+        @Override
+        public void setContentLength(int len) {
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            } else if (stream != null) {
+                stream.flush();
+            }
+            super.flushBuffer();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            stream = null;
+            writer = null;
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            if (stream != null) {
+                stream.discardPending();
+            }
+        }
+
+        void finish() throws IOException {
+            if (writer != null) {
+                writer.close();
+            } else if (stream != null) {
+                stream.close();
+            }
+        }
+    }
+
+    private final class CompressingStream extends ServletOutputStream {
+        private final HttpServletResponse response;
+        private final String encoding;
+        private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private OutputStream target;
+        private long written;
+        private boolean compressing;
+        private boolean closed;
+
+        CompressingStream(HttpServletResponse response, String encoding) {
+            this.response = response;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            written += len;
+            if (target != null) {
+                target.write(b, off, len);
+                return;
+            }
+            pending.write(b, off, len);
+            if (pending.size() >= minSize) {
+                start(true);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // Hold small bodies back until close so they can still go out uncompressed
+            if (target != null) {
+                target.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (target == null) {
+                start(false);
+            }
+            closed = true;
+            target.close();
+            if (compressing) {
+                compressedResponses.incrementAndGet();
+                bytesIn.addAndGet(written);
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        void discardPending() {
+            if (target == null) {
+                pending.reset();
+                written = 0;
+            }
+        }
+
+        private void start(boolean large) throws IOException {
+            OutputStream raw = response.getOutputStream();
+            compressing = large
+                    && !response.containsHeader("Content-Encoding")
+                    && isCompressible(response.getContentType());
+            if (compressing) {
+                response.setHeader("Content-Encoding", encoding);
+                OutputStream counted = new CountingStream(raw);
+                if ("gzip".equals(encoding)) {
+                    target = new GZIPOutputStream(counted, 8192) {
+                        {
+                            def.setLevel(level);
+                        }
+                    };
+                } else {
+                    target = new DeflaterOutputStream(counted, new Deflater(level), 8192) {
+                        @Override
+                        public void close() throws IOException {
+                            super.close();
+                            def.end();
+                        }
+                    };
+                }
+            } else {
+                if (!large) {
+                    response.setContentLength(pending.size());
+                }
+                target = raw;
+            }
+            pending.writeTo(target);
+            pending = null;
+        }
+    }
+
+    private static final class CountingStream extends OutputStream {
+        private final OutputStream out;
+
+        CountingStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytesOut.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytesOut.addAndGet(len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
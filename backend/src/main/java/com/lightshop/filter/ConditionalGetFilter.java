@@ -0,0 +1,188 @@
+package com.lightshop.filter;
+
+import com.lightshop.util.TableVersions;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ETag / Last-Modified for the public catalog GETs. The validator is built
+ * from the in-memory versions of the tables an endpoint reads, so a matching
+ * If-None-Match is answered with 304 before any servlet or SQLite work.
+ */
+public class ConditionalGetFilter implements Filter {
+    // Checked in order; the first matching prefix wins
+    private static final List<Rule> RULES = Arrays.asList(
+            new Rule("/api/products/recommend", null),
+            new Rule("/api/products", "public, no-cache",
+                    TableVersions.PRODUCTS, TableVersions.CATEGORIES, TableVersions.REVIEWS),
+            new Rule("/api/categories", "public, max-age=60", TableVersions.CATEGORIES),
+            new Rule("/api/banners", "public, max-age=60", TableVersions.BANNERS),
+            new Rule("/api/settings", "public, max-age=300", TableVersions.SETTINGS)
+    );
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+
+        String method = httpRequest.getMethod();
+        Rule rule = "GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method)
+                ? findRule(httpRequest.getRequestURI()) : null;
+        if (rule == null || rule.cacheControl == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        // Read the versions before the servlet reads the data, so a concurrent
+        // write can only make the validator older than the body, never newer
+        String etag = rule.etag();
+        long lastModified = rule.lastModified();
+
+        String ifNoneMatch = httpRequest.getHeader("If-None-Match");
+        boolean notModified;
+        if (ifNoneMatch != null) {
+            notModified = matches(ifNoneMatch, etag);
+        } else {
+            long ifModifiedSince = -1;
+            try {
+                ifModifiedSince = httpRequest.getDateHeader("If-Modified-Since");
+            } catch (IllegalArgumentException e) {
+                // Unparseable date: treat as absent
+            }
+            notModified = ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        }
+
+        if (notModified) {
+            httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            httpResponse.setHeader("ETag", etag);
+            httpResponse.setDateHeader("Last-Modified", lastModified);
+            httpResponse.setHeader("Cache-Control", rule.cacheControl);
+            return;
+        }
+
+        chain.doFilter(request, new ValidatorResponse(httpResponse, rule.cacheControl, etag, lastModified));
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /** Tables a cacheable catalog path reads, or null when the path must not be cached. */
+    static String[] tablesFor(String path) {
+        Rule rule = findRule(path);
+        return rule == null || rule.cacheControl == null ? null : rule.tables;
+    }
+
+    private static Rule findRule(String path) {
+        for (Rule rule : RULES) {
+            if (path.equals(rule.prefix) || path.startsWith(rule.prefix + "/")) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    // Weak comparison, as If-None-Match requires
+    private static boolean matches(String ifNoneMatch, String etag) {
+        String target = stripWeak(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if ("*".equals(value) || stripWeak(value).equals(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static final class Rule {
+        private final String prefix;
+        private final String cacheControl;
+        private final String[] tables;
+
+        Rule(String prefix, String cacheControl, String... tables) {
+            this.prefix = prefix;
+            this.cacheControl = cacheControl;
+            this.tables = tables;
+        }
+
+        // Weak: the same version is served both compressed and uncompressed
+        String etag() {
+            StringBuilder sb = new StringBuilder("W/\"").append(Long.toString(TableVersions.getBootEpoch(), 36));
+            for (String table : tables) {
+                sb.append('-').append(TableVersions.getVersion(table));
+            }
+            return sb.append('"').toString();
+        }
+
+        long lastModified() {
+            long latest = 0;
+            for (String table : tables) {
+                latest = Math.max(latest, TableVersions.getLastModified(table));
+            }
+            return latest;
+        }
+    }
+
+    /** Adds the validators only once the body turns out to be a 200. */
+    private static final class ValidatorResponse extends HttpServletResponseWrapper {
+        private final String cacheControl;
+        private final String etag;
+        private final long lastModified;
+        private boolean applied;
+
+        ValidatorResponse(HttpServletResponse response, String cacheControl, String etag, long lastModified) {
+            super(response);
+            this.cacheControl = cacheControl;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            apply();
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            apply();
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            apply();
+            super.flushBuffer();
+        }
+
+        private void apply() {
+            if (applied) {
+                return;
+            }
+            applied = true;
+            if (getStatus() == HttpServletResponse.SC_OK) {
+                setHeader("ETag", etag);
+                setDateHeader("Last-Modified", lastModified);
+                setHeader("Cache-Control", cacheControl);
+            } else {
+                setHeader("Cache-Control", "no-store");
+            }
+        }
+    }
+}
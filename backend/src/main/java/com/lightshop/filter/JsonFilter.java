@@ -1,5 +1,7 @@
 package com.lightshop.filter;
 
+import com.lightshop.util.JsonUtil;
+
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -27,6 +29,14 @@ public class JsonFilter implements Filter {
             httpResponse.setContentType("application/json;charset=UTF-8");
         }
 
+        // Reject oversized JSON bodies before anything reads them; uploads are multipart and exempt
+        String contentType = httpRequest.getContentType();
+        boolean multipart = contentType != null && contentType.toLowerCase().startsWith("multipart/");
+        if (!multipart && httpRequest.getContentLengthLong() > JsonUtil.getMaxBodyBytes()) {
+            JsonUtil.writeError(httpResponse, 413, "请求体过大");
+            return;
+        }
+
         chain.doFilter(request, response);
     }
 
@@ -0,0 +1,238 @@
+package com.lightshop.filter;
+
+import com.lightshop.util.AuthPrincipal;
+import com.lightshop.util.DatabaseUtil;
+import com.lightshop.util.JsonUtil;
+import com.lightshop.util.JwtUtil;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-client token buckets keyed by user id (when a valid token is sent) or
+ * client IP, with limits per path prefix ("prefix=ratePerSecond:burst", the
+ * longest matching prefix wins). Buckets are GCRA cells updated by CAS, and a
+ * bucket that has fully refilled carries no state, so the sweeper drops it.
+ */
+public class RateLimitFilter implements Filter {
+    private static final String DEFAULT_LIMITS =
+            "/api/auth/login=1:5,/api/auth/register=0.2:3,/api/products=20:40,/api=50:100";
+    private static final long SWEEP_INTERVAL_MS = 10_000;
+
+    private static final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private static final AtomicLong allowed = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong overflowed = new AtomicLong();
+    private static volatile int maxKeys = 100_000;
+
+    private List<Rule> rules = new ArrayList<>();
+    private boolean trustProxy;
+    private ScheduledExecutorService sweeper;
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        String limits = System.getenv("RATE_LIMITS");
+        if (limits == null || limits.isEmpty()) {
+            limits = filterConfig.getInitParameter("limits");
+        }
+        if (limits == null || limits.isEmpty()) {
+            limits = DEFAULT_LIMITS;
+        }
+        rules = parseRules(limits);
+        trustProxy = "true".equalsIgnoreCase(System.getenv("RATE_LIMIT_TRUST_PROXY"));
+        maxKeys = Math.max(1, DatabaseUtil.getEnvInt("RATE_LIMIT_MAX_KEYS", 100_000));
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lightshop-rate-limit-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(RateLimitFilter::sweep, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+
+        if ("OPTIONS".equalsIgnoreCase(httpRequest.getMethod())) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        Rule rule = findRule(httpRequest.getRequestURI());
+        if (rule == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        long waitNanos = rule.acquire(bucketFor(rule, clientKey(httpRequest)), System.nanoTime());
+        if (waitNanos > 0) {
+            rejected.incrementAndGet();
+            httpResponse.setHeader("Retry-After", String.valueOf(retryAfterSeconds(waitNanos)));
+            JsonUtil.writeError(httpResponse, 429, "请求过于频繁，请稍后再试");
+            return;
+        }
+        allowed.incrementAndGet();
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    public void destroy() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        buckets.clear();
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("keys", buckets.size());
+        stats.put("maxKeys", maxKeys);
+        stats.put("allowed", allowed.get());
+        stats.put("rejected", rejected.get());
+        stats.put("overflowed", overflowed.get());
+        return stats;
+    }
+
+    // Whole seconds, rounded up and at least 1, so a client retrying on time gets a token
+    static long retryAfterSeconds(long waitNanos) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999));
+    }
+
+    private Rule findRule(String path) {
+        // Rules are sorted longest prefix first
+        for (Rule rule : rules) {
+            if (path.startsWith(rule.prefix)) {
+                return rule.intervalNanos > 0 ? rule : null;
+            }
+        }
+        return null;
+    }
+
+    private String clientKey(HttpServletRequest request) {
+        AuthPrincipal principal = AuthPrincipal.from(request);
+        if (principal == null) {
+            String authHeader = request.getHeader("Authorization");
+            if (authHeader != null && authHeader.startsWith("Bearer ")) {
+                // Cached, so AuthFilter's own check right after is a cache hit
+                principal = JwtUtil.authenticate(authHeader.substring(7));
+            }
+        }
+        if (principal != null) {
+            return "u:" + principal.getUserId();
+        }
+        return "ip:" + clientIp(request);
+    }
+
+    private String clientIp(HttpServletRequest request) {
+        if (trustProxy) {
+            String realIp = request.getHeader("X-Real-IP");
+            if (realIp != null && !realIp.isEmpty()) {
+                return realIp.trim();
+            }
+            String forwarded = request.getHeader("X-Forwarded-For");
+            if (forwarded != null && !forwarded.isEmpty()) {
+                int comma = forwarded.indexOf(',');
+                return (comma < 0 ? forwarded : forwarded.substring(0, comma)).trim();
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    private static Bucket bucketFor(Rule rule, String client) {
+        String key = rule.prefix + "|" + client;
+        Bucket bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= maxKeys) {
+            // Too many distinct clients: they share one bucket per rule until the sweeper frees space
+            overflowed.incrementAndGet();
+            return rule.overflow;
+        }
+        return buckets.computeIfAbsent(key, k -> new Bucket(System.nanoTime()));
+    }
+
+    private static void sweep() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+            if (bucket.get() - now <= 0) {
+                buckets.remove(entry.getKey(), bucket);
+            }
+        }
+    }
+
+    private static List<Rule> parseRules(String spec) {
+        List<Rule> parsed = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String entry = part.trim();
+            int eq = entry.lastIndexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            String prefix = entry.substring(0, eq).trim();
+            String[] limit = entry.substring(eq + 1).split(":");
+            try {
+                double rate = Double.parseDouble(limit[0].trim());
+                int burst = limit.length > 1 ? Integer.parseInt(limit[1].trim()) : (int) Math.max(1, Math.ceil(rate));
+                parsed.add(new Rule(prefix, rate, burst));
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring invalid rate limit rule: " + entry);
+            }
+        }
+        parsed.sort((a, b) -> b.prefix.length() - a.prefix.length());
+        return parsed;
+    }
+
+    /** Holds the theoretical arrival time of the next request, in nanoTime units. */
+    static final class Bucket extends AtomicLong {
+        Bucket(long tat) {
+            super(tat);
+        }
+    }
+
+    static final class Rule {
+        private final String prefix;
+        // Nanoseconds per token; 0 means the prefix is unlimited
+        private final long intervalNanos;
+        // How far ahead of now the arrival time may run before requests are refused
+        private final long toleranceNanos;
+        private final Bucket overflow = new Bucket(System.nanoTime());
+
+        Rule(String prefix, double ratePerSecond, int burst) {
+            this.prefix = prefix;
+            this.intervalNanos = ratePerSecond > 0 ? (long) (1_000_000_000L / ratePerSecond) : 0;
+            this.toleranceNanos = intervalNanos * Math.max(1, burst);
+        }
+
+        /** Takes one token; returns 0 when allowed, otherwise how long until a token is available. */
+        long acquire(Bucket bucket, long now) {
+            while (true) {
+                long tat = bucket.get();
+                long start = tat - now > 0 ? tat : now;
+                long next = start + intervalNanos;
+                long over = next - now - toleranceNanos;
+                if (over > 0) {
+                    return over;
+                }
+                if (bucket.compareAndSet(tat, next)) {
+                    return 0;
+                }
+            }
+        }
+    }
+}
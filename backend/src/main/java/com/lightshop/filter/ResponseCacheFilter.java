@@ -0,0 +1,274 @@
+package com.lightshop.filter;
+
+import com.lightshop.util.DatabaseUtil;
+import com.lightshop.util.LruCache;
+import com.lightshop.util.TableVersions;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Caches whole serialized responses of the public catalog GETs for anonymous
+ * clients, keyed by path plus sorted query string. An entry remembers the
+ * table versions it was built from and is dropped as soon as any of them is
+ * bumped. Concurrent misses for one key wait for a single recomputation.
+ */
+public class ResponseCacheFilter implements Filter {
+    private static final long FOLLOWER_WAIT_MS = 5_000;
+
+    private static final LruCache<String, Entry> cache = new LruCache<>(
+            DatabaseUtil.getEnvInt("RESPONSE_CACHE_SIZE", 256),
+            DatabaseUtil.getEnvLong("RESPONSE_CACHE_TTL_MS", 30_000));
+    private static final ConcurrentHashMap<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+    private static final AtomicLong coalesced = new AtomicLong();
+    private static final int COMPRESS_MIN_SIZE = DatabaseUtil.getEnvInt("COMPRESSION_MIN_SIZE", 1024);
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+
+        String[] tables = "GET".equalsIgnoreCase(httpRequest.getMethod())
+                && httpRequest.getHeader("Authorization") == null
+                ? ConditionalGetFilter.tablesFor(httpRequest.getRequestURI()) : null;
+        if (tables == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String key = cacheKey(httpRequest);
+        long[] versions = snapshot(tables);
+        Entry entry = cache.get(key);
+        if (entry != null && Arrays.equals(entry.versions, versions)) {
+            entry.writeTo(httpRequest, httpResponse);
+            return;
+        }
+
+        CompletableFuture<Entry> flight = new CompletableFuture<>();
+        CompletableFuture<Entry> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            entry = await(leader);
+            if (entry != null) {
+                entry.writeTo(httpRequest, httpResponse);
+            } else {
+                chain.doFilter(request, response);
+            }
+            return;
+        }
+
+        try {
+            CapturingResponse capture = new CapturingResponse(httpResponse);
+            chain.doFilter(request, capture);
+            entry = capture.toEntry(versions);
+            if (entry != null) {
+                cache.put(key, entry);
+            }
+            flight.complete(entry);
+            capture.replay(httpRequest, httpResponse, entry);
+        } finally {
+            flight.complete(null);
+            inFlight.remove(key, flight);
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("size", cache.size());
+        stats.put("hits", cache.getHits());
+        stats.put("misses", cache.getMisses());
+        stats.put("hitRatio", cache.getHitRatio());
+        stats.put("coalesced", coalesced.get());
+        return stats;
+    }
+
+    private static String cacheKey(HttpServletRequest request) {
+        StringBuilder sb = new StringBuilder(request.getRequestURI());
+        char separator = '?';
+        for (Map.Entry<String, String[]> param : new TreeMap<>(request.getParameterMap()).entrySet()) {
+            String[] values = param.getValue().clone();
+            Arrays.sort(values);
+            for (String value : values) {
+                sb.append(separator).append(param.getKey()).append('=').append(value);
+                separator = '&';
+            }
+        }
+        return sb.toString();
+    }
+
+    private static long[] snapshot(String[] tables) {
+        long[] versions = new long[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            versions[i] = TableVersions.getVersion(tables[i]);
+        }
+        return versions;
+    }
+
+    private static Entry await(CompletableFuture<Entry> leader) {
+        try {
+            return leader.get(FOLLOWER_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Same q-value negotiation as CompressionFilter, so gzip;q=0 gets the plain body
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        return "gzip".equals(CompressionFilter.negotiate(request.getHeader("Accept-Encoding")));
+    }
+
+    private static final class Entry {
+        private final long[] versions;
+        private final String contentType;
+        private final byte[] body;
+        private final byte[] gzipped;
+
+        Entry(long[] versions, String contentType, byte[] body, byte[] gzipped) {
+            this.versions = versions;
+            this.contentType = contentType;
+            this.body = body;
+            this.gzipped = gzipped;
+        }
+
+        void writeTo(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(contentType);
+            byte[] bytes = body;
+            if (gzipped != null) {
+                if (!response.containsHeader("Vary")) {
+                    response.addHeader("Vary", "Accept-Encoding");
+                }
+                if (acceptsGzip(request)) {
+                    response.setHeader("Content-Encoding", "gzip");
+                    bytes = gzipped;
+                }
+            }
+            response.setContentLength(bytes.length);
+            try (ServletOutputStream out = response.getOutputStream()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /** Buffers the servlet's output so it can be stored before it is sent. */
+    private static final class CapturingResponse extends HttpServletResponseWrapper {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private ServletOutputStream stream;
+        private PrintWriter writer;
+
+        CapturingResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            if (stream == null) {
+                stream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) {
+                        buffer.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        buffer.write(b, off, len);
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                    }
+                };
+            }
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+        }
+
+        @Override
+        public void flushBuffer() {
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+
+        Entry toEntry(long[] versions) throws IOException {
+            flushBuffer();
+            if (getStatus() != HttpServletResponse.SC_OK || getHeader("Content-Encoding") != null) {
+                return null;
+            }
+            byte[] body = buffer.toByteArray();
+            byte[] gzipped = null;
+            if (body.length >= COMPRESS_MIN_SIZE) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(body);
+                }
+                gzipped = compressed.toByteArray();
+            }
+            return new Entry(versions, getContentType(), body, gzipped);
+        }
+
+        void replay(HttpServletRequest request, HttpServletResponse response, Entry entry) throws IOException {
+            if (entry != null) {
+                entry.writeTo(request, response);
+                return;
+            }
+            // Not cacheable (error or already encoded): pass the body through as is
+            flushBuffer();
+            byte[] body = buffer.toByteArray();
+            response.setContentLength(body.length);
+            try (ServletOutputStream out = response.getOutputStream()) {
+                out.write(body);
+            }
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package com.lightshop.listener;
 
+import com.lightshop.dao.CartStore;
+import com.lightshop.dao.ProductDao;
+import com.lightshop.dao.StockLedger;
+import com.lightshop.service.FlashSaleEngine;
+import com.lightshop.service.OrderExpiryService;
 import com.lightshop.util.DatabaseUtil;
 import com.lightshop.util.JwtUtil;
+import com.lightshop.util.PasswordUtil;
 
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
@@ -29,6 +35,21 @@ public class AppContextListener implements ServletContextListener {
         try {
             DatabaseUtil.init(dbPath);
             System.out.println("Database initialized successfully");
+
+            StockLedger.start();
+            System.out.println("Stock ledger compactor started");
+
+            CartStore.start();
+            System.out.println("Cart store started");
+
+            ProductDao.loadLeaderboards();
+            System.out.println("Product leaderboards loaded");
+
+            FlashSaleEngine.start();
+            System.out.println("Flash sale engine started");
+
+            OrderExpiryService.start();
+            System.out.println("Order expiry scheduler started");
         } catch (Exception e) {
             System.err.println("Failed to initialize database: " + e.getMessage());
             e.printStackTrace();
@@ -47,6 +68,12 @@ public class AppContextListener implements ServletContextListener {
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
         System.out.println("LightShop Application Shutting Down...");
+        OrderExpiryService.shutdown();
+        FlashSaleEngine.shutdown();
+        CartStore.shutdown();
+        StockLedger.shutdown();
+        PasswordUtil.shutdown();
+        DatabaseUtil.shutdown();
     }
 }
 
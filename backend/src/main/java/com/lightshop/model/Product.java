@@ -16,6 +16,9 @@ public class Product {
     private int status; // 0: off shelf, 1: on shelf
     private Timestamp createdAt;
     private Timestamp updatedAt;
+    // Search results only: HTML-escaped text with matched terms wrapped in <em></em>
+    private String highlight;
+    private String snippet;
 
     public Product() {}
 
@@ -69,5 +72,10 @@ public class Product {
 
     public Timestamp getUpdatedAt() { return updatedAt; }
     public void setUpdatedAt(Timestamp updatedAt) { this.updatedAt = updatedAt; }
-}
 
+    public String getHighlight() { return highlight; }
+    public void setHighlight(String highlight) { this.highlight = highlight; }
+
+    public String getSnippet() { return snippet; }
+    public void setSnippet(String snippet) { this.snippet = snippet; }
+}
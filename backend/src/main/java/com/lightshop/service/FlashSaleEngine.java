@@ -0,0 +1,311 @@
+package com.lightshop.service;
+
+import com.lightshop.dao.FlashSaleDao;
+import com.lightshop.dao.OrderDao;
+import com.lightshop.dao.ProductDao;
+import com.lightshop.model.Order;
+import com.lightshop.model.OrderItem;
+import com.lightshop.model.Product;
+import com.lightshop.util.DatabaseUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Seckill mode for products listed in flash_sales. Their stock is held in
+ * memory, so admitting a buyer is a CAS on a counter and never touches SQLite.
+ * Admitted orders are queued and a single worker hands them to the database
+ * writer in batches; clients poll the order number for the outcome.
+ *
+ * The stock ledger stays authoritative: OrderDao still reserves every order
+ * against StockLedger's balance and records the deduction in stock_movements
+ * within the order's transaction, so a counter that drifts high only costs a
+ * failed ticket.
+ */
+public class FlashSaleEngine {
+    public enum AdmitResult { ADMITTED, SOLD_OUT, BUSY }
+
+    public enum Status { PENDING, SUCCESS, FAILED }
+
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_BATCH_SIZE = 128;
+    private static final long TICKET_TTL_MS = 10 * 60 * 1000;
+    private static final long SWEEP_INTERVAL_MS = 60 * 1000;
+
+    private static final Map<Integer, Slot> slots = new ConcurrentHashMap<>();
+    private static final Map<String, Ticket> tickets = new ConcurrentHashMap<>();
+    private static final ProductDao productDao = new ProductDao();
+    private static final OrderDao orderDao = new OrderDao();
+    private static final FlashSaleDao flashSaleDao = new FlashSaleDao();
+
+    private static volatile BlockingQueue<Admission> queue;
+    private static volatile Thread worker;
+    private static volatile boolean running = false;
+    private static int batchSize = DEFAULT_BATCH_SIZE;
+
+    public static synchronized void start() {
+        if (running) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<>(Math.max(1, DatabaseUtil.getEnvInt("FLASH_SALE_QUEUE_SIZE", DEFAULT_QUEUE_SIZE)));
+        batchSize = Math.max(1, DatabaseUtil.getEnvInt("FLASH_SALE_BATCH_SIZE", DEFAULT_BATCH_SIZE));
+        for (int productId : flashSaleDao.findProductIds()) {
+            load(productId);
+        }
+        running = true;
+        worker = new Thread(FlashSaleEngine::run, "lightshop-flash-sale");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public static synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        worker.interrupt();
+        try {
+            worker.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static boolean isFlashSale(int productId) {
+        return running && slots.containsKey(productId);
+    }
+
+    public static Product getProduct(int productId) {
+        Slot slot = slots.get(productId);
+        return slot == null ? null : slot.product;
+    }
+
+    public static boolean enable(int productId) {
+        if (!flashSaleDao.add(productId)) {
+            return false;
+        }
+        return load(productId);
+    }
+
+    public static boolean disable(int productId) {
+        slots.remove(productId);
+        return flashSaleDao.remove(productId);
+    }
+
+    // Re-read a product after an admin edit; queued admissions are still owed their stock
+    public static void refresh(int productId) {
+        Slot slot = slots.get(productId);
+        if (slot == null) {
+            return;
+        }
+        Product product = productDao.findById(productId);
+        if (product == null) {
+            slots.remove(productId);
+            return;
+        }
+        slot.product = product;
+        slot.stock.set(Math.max(0, product.getStock() - slot.pending.get()));
+    }
+
+    // Stock returned to the database (cancel/refund) becomes sellable again
+    public static void restock(int productId, int quantity) {
+        Slot slot = slots.get(productId);
+        if (slot != null) {
+            slot.stock.addAndGet(quantity);
+        }
+    }
+
+    /**
+     * Reserves every line from the in-memory counters and queues the order.
+     * The order number doubles as the ticket the client polls.
+     */
+    public static AdmitResult admit(Order order, List<OrderItem> items) {
+        List<Slot> reserved = new ArrayList<>(items.size());
+        for (OrderItem item : items) {
+            Slot slot = slots.get(item.getProductId());
+            if (slot == null || slot.product.getStatus() != 1 || !slot.reserve(item.getQuantity())) {
+                release(reserved, items);
+                return AdmitResult.SOLD_OUT;
+            }
+            reserved.add(slot);
+        }
+
+        Ticket ticket = new Ticket(order.getOrderNo(), order.getUserId());
+        tickets.put(ticket.orderNo, ticket);
+        if (!running || !queue.offer(new Admission(order, items, ticket))) {
+            tickets.remove(ticket.orderNo);
+            release(reserved, items);
+            return AdmitResult.BUSY;
+        }
+        return AdmitResult.ADMITTED;
+    }
+
+    public static Ticket getTicket(String orderNo) {
+        return tickets.get(orderNo);
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("products", slots.size());
+        stats.put("queue", queue == null ? 0 : queue.size());
+        stats.put("tickets", tickets.size());
+        return stats;
+    }
+
+    private static boolean load(int productId) {
+        Product product = productDao.findById(productId);
+        if (product == null) {
+            return false;
+        }
+        slots.compute(productId, (id, slot) -> {
+            if (slot == null) {
+                return new Slot(product);
+            }
+            slot.product = product;
+            slot.stock.set(Math.max(0, product.getStock() - slot.pending.get()));
+            return slot;
+        });
+        return true;
+    }
+
+    private static void release(List<Slot> reserved, List<OrderItem> items) {
+        for (int i = 0; i < reserved.size(); i++) {
+            reserved.get(i).release(items.get(i).getQuantity());
+        }
+    }
+
+    private static void run() {
+        List<Admission> batch = new ArrayList<>(batchSize);
+        long lastSweep = System.currentTimeMillis();
+        while (running || !queue.isEmpty()) {
+            try {
+                Admission first = running ? queue.poll(1, TimeUnit.SECONDS) : queue.poll();
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                }
+            } catch (InterruptedException e) {
+                // Shutdown requested; drain what is already admitted
+            }
+            if (!batch.isEmpty()) {
+                process(batch);
+                batch.clear();
+            }
+            if (System.currentTimeMillis() - lastSweep > SWEEP_INTERVAL_MS) {
+                sweepTickets();
+                lastSweep = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private static void process(List<Admission> batch) {
+        // Submit the whole batch before waiting so the writer commits it together
+        List<CompletableFuture<Integer>> results = new ArrayList<>(batch.size());
+        for (Admission admission : batch) {
+            results.add(orderDao.createAsync(admission.order, admission.items, false));
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Admission admission = batch.get(i);
+            int orderId = results.get(i).join();
+            for (OrderItem item : admission.items) {
+                Slot slot = slots.get(item.getProductId());
+                if (slot == null) {
+                    continue;
+                }
+                slot.pending.addAndGet(-item.getQuantity());
+                if (orderId < 0 && orderId != OrderDao.OUT_OF_STOCK) {
+                    // Not a stock problem, so the reservation is still valid stock
+                    slot.stock.addAndGet(item.getQuantity());
+                }
+            }
+
+            if (orderId > 0) {
+                OrderExpiryService.schedule(orderId);
+                admission.ticket.finish(Status.SUCCESS, "创建订单成功");
+            } else if (orderId == OrderDao.OUT_OF_STOCK) {
+                admission.ticket.finish(Status.FAILED, "商品库存不足");
+            } else {
+                admission.ticket.finish(Status.FAILED, "创建订单失败");
+            }
+        }
+    }
+
+    private static void sweepTickets() {
+        long cutoff = System.currentTimeMillis() - TICKET_TTL_MS;
+        tickets.values().removeIf(ticket -> ticket.status != Status.PENDING && ticket.finishedAt < cutoff);
+    }
+
+    private static final class Slot {
+        private final AtomicLong stock;
+        // Admitted but not yet written to the database
+        private final AtomicLong pending = new AtomicLong();
+        private volatile Product product;
+
+        Slot(Product product) {
+            this.product = product;
+            this.stock = new AtomicLong(Math.max(0, product.getStock()));
+        }
+
+        boolean reserve(int quantity) {
+            long current;
+            do {
+                current = stock.get();
+                if (current < quantity) {
+                    return false;
+                }
+            } while (!stock.compareAndSet(current, current - quantity));
+            pending.addAndGet(quantity);
+            return true;
+        }
+
+        void release(int quantity) {
+            pending.addAndGet(-quantity);
+            stock.addAndGet(quantity);
+        }
+    }
+
+    private static final class Admission {
+        private final Order order;
+        private final List<OrderItem> items;
+        private final Ticket ticket;
+
+        Admission(Order order, List<OrderItem> items, Ticket ticket) {
+            this.order = order;
+            this.items = items;
+            this.ticket = ticket;
+        }
+    }
+
+    public static final class Ticket {
+        private final String orderNo;
+        private final int userId;
+        private volatile Status status = Status.PENDING;
+        private volatile String message = "排队中";
+        private volatile long finishedAt;
+
+        Ticket(String orderNo, int userId) {
+            this.orderNo = orderNo;
+            this.userId = userId;
+        }
+
+        void finish(Status status, String message) {
+            this.message = message;
+            this.finishedAt = System.currentTimeMillis();
+            this.status = status;
+        }
+
+        public String getOrderNo() { return orderNo; }
+        public int getUserId() { return userId; }
+        public Status getStatus() { return status; }
+        public String getMessage() { return message; }
+    }
+}
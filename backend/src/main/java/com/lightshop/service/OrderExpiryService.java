@@ -0,0 +1,139 @@
+package com.lightshop.service;
+
+import com.lightshop.dao.OrderDao;
+import com.lightshop.model.OrderItem;
+import com.lightshop.util.DatabaseUtil;
+import com.lightshop.util.TimingWheel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cancels orders left unpaid past ORDER_PAYMENT_TIMEOUT_MS and puts their
+ * stock back. Every new order gets a timer in a hierarchical timing wheel
+ * ticked by one background thread; on startup the wheel is refilled from the
+ * pending orders with a single query. Timers aren't removed when an order is
+ * paid or cancelled by hand: the cancel only applies to orders still pending.
+ */
+public class OrderExpiryService {
+    private static final long DEFAULT_TIMEOUT_MS = 30 * 60 * 1000;
+    private static final int DEFAULT_BATCH_SIZE = 200;
+    private static final long TICK_MS = 1000;
+    // 512 one-second slots per level; four levels reach far beyond any sane timeout
+    private static final int WHEEL_SIZE = 512;
+    private static final int WHEEL_LEVELS = 4;
+
+    private static final OrderDao orderDao = new OrderDao();
+    private static final AtomicLong expired = new AtomicLong();
+
+    private static volatile TimingWheel wheel;
+    private static volatile Thread worker;
+    private static volatile boolean running = false;
+    private static long timeoutMs = DEFAULT_TIMEOUT_MS;
+    private static int batchSize = DEFAULT_BATCH_SIZE;
+
+    public static synchronized void start() {
+        if (running) {
+            return;
+        }
+        timeoutMs = Math.max(TICK_MS, DatabaseUtil.getEnvLong("ORDER_PAYMENT_TIMEOUT_MS", DEFAULT_TIMEOUT_MS));
+        batchSize = Math.max(1, DatabaseUtil.getEnvInt("ORDER_EXPIRY_BATCH_SIZE", DEFAULT_BATCH_SIZE));
+        TimingWheel loaded = new TimingWheel(TICK_MS, WHEEL_SIZE, WHEEL_LEVELS, System.currentTimeMillis());
+        orderDao.forEachPending((orderId, createdAt) -> loaded.add(orderId, createdAt + timeoutMs));
+        wheel = loaded;
+        running = true;
+        worker = new Thread(OrderExpiryService::run, "lightshop-order-expiry");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public static synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        worker.interrupt();
+        try {
+            worker.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Starts the payment clock for a newly created order. */
+    public static void schedule(int orderId) {
+        TimingWheel current = wheel;
+        if (current == null) {
+            // Not started; the order is picked up from the table on the next start
+            return;
+        }
+        long expiresAt = System.currentTimeMillis() + timeoutMs;
+        synchronized (current) {
+            current.add(orderId, expiresAt);
+        }
+    }
+
+    /**
+     * Cancels the given orders if they are still pending payment, restoring
+     * their stock, and returns how many were cancelled. Used both for expiry
+     * and for cancels by users and admins, so the two can't both restore stock.
+     */
+    public static int cancel(List<Integer> orderIds) {
+        Map<Integer, List<OrderItem>> cancelled = orderDao.cancelPending(orderIds);
+        for (List<OrderItem> items : cancelled.values()) {
+            for (OrderItem item : items) {
+                FlashSaleEngine.restock(item.getProductId(), item.getQuantity());
+            }
+        }
+        return cancelled.size();
+    }
+
+    public static int cancel(int orderId) {
+        return cancel(Collections.singletonList(orderId));
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        TimingWheel current = wheel;
+        int pending = 0;
+        if (current != null) {
+            synchronized (current) {
+                pending = current.size();
+            }
+        }
+        stats.put("running", running);
+        stats.put("timeoutMs", timeoutMs);
+        stats.put("pendingTimers", pending);
+        stats.put("expired", expired.get());
+        return stats;
+    }
+
+    private static void run() {
+        List<Integer> due = new ArrayList<>();
+        while (running) {
+            try {
+                Thread.sleep(TICK_MS);
+            } catch (InterruptedException e) {
+                // Shutdown requested; timers are rebuilt from the table on the next start
+                return;
+            }
+            TimingWheel current = wheel;
+            synchronized (current) {
+                current.advance(System.currentTimeMillis(), due::add);
+            }
+            for (int from = 0; from < due.size(); from += batchSize) {
+                List<Integer> batch = due.subList(from, Math.min(due.size(), from + batchSize));
+                try {
+                    expired.addAndGet(cancel(batch));
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            due.clear();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.lightshop.servlet;
 import com.google.gson.JsonObject;
 import com.lightshop.dao.AddressDao;
 import com.lightshop.model.Address;
+import com.lightshop.util.AuthPrincipal;
 import com.lightshop.util.JsonUtil;
 import com.lightshop.util.StringUtil;
 
@@ -18,11 +19,12 @@ public class AddressServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
             String pathInfo = request.getPathInfo();
 
@@ -50,14 +52,14 @@ public class AddressServlet extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            JsonObject json = JsonUtil.readJson(request);
 
             String receiverName = json.has("receiverName") ? json.get("receiverName").getAsString() : null;
             String phone = json.has("phone") ? json.get("phone").getAsString() : null;
@@ -105,11 +107,12 @@ public class AddressServlet extends HttpServlet {
     @Override
     protected void doPut(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
             String pathInfo = request.getPathInfo();
             if (pathInfo == null || pathInfo.equals("/")) {
@@ -132,8 +135,7 @@ public class AddressServlet extends HttpServlet {
                 return;
             }
 
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            JsonObject json = JsonUtil.readJson(request);
 
             if (json.has("receiverName")) address.setReceiverName(json.get("receiverName").getAsString());
             if (json.has("phone")) address.setPhone(json.get("phone").getAsString());
@@ -160,11 +162,12 @@ public class AddressServlet extends HttpServlet {
     @Override
     protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
             String pathInfo = request.getPathInfo();
             if (pathInfo == null || pathInfo.equals("/")) {
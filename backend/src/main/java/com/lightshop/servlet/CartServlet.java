@@ -1,56 +1,38 @@
 package com.lightshop.servlet;
 
 import com.google.gson.JsonObject;
-import com.lightshop.dao.CartDao;
+import com.lightshop.dao.CartStore;
 import com.lightshop.dao.ProductDao;
 import com.lightshop.model.CartItem;
 import com.lightshop.model.Product;
+import com.lightshop.util.AuthPrincipal;
 import com.lightshop.util.JsonUtil;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class CartServlet extends HttpServlet {
-    private final CartDao cartDao = new CartDao();
+    private static final int MAX_BATCH_OPERATIONS = 100;
+
     private final ProductDao productDao = new ProductDao();
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
-            List<CartItem> items = cartDao.findByUserId(userId);
-            
-            // Calculate totals
-            double totalAmount = 0;
-            int totalQuantity = 0;
-            int selectedCount = 0;
-            
-            for (CartItem item : items) {
-                totalQuantity += item.getQuantity();
-                if (item.isSelected()) {
-                    totalAmount += item.getSubtotal();
-                    selectedCount++;
-                }
-            }
-
-            Map<String, Object> data = new HashMap<>();
-            data.put("items", items);
-            data.put("totalAmount", totalAmount);
-            data.put("totalQuantity", totalQuantity);
-            data.put("selectedCount", selectedCount);
-            data.put("allSelected", items.size() > 0 && selectedCount == items.size());
-
-            JsonUtil.writeSuccess(response, data);
+            JsonUtil.writeSuccess(response, summarize(CartStore.findByUserId(userId)));
         } catch (Exception e) {
             e.printStackTrace();
             JsonUtil.writeError(response, 500, "服务器错误");
@@ -60,17 +42,26 @@ public class CartServlet extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            if ("/batch".equals(request.getPathInfo())) {
+                handleBatch(request, response, userId);
+                return;
+            }
+
+            AddCartRequest body = JsonUtil.readRequestBody(request, AddCartRequest.class);
+            if (body == null || body.productId == null) {
+                JsonUtil.writeError(response, 400, "商品ID不能为空");
+                return;
+            }
 
-            int productId = json.get("productId").getAsInt();
-            int quantity = json.has("quantity") ? json.get("quantity").getAsInt() : 1;
+            int productId = body.productId;
+            int quantity = body.quantity != null ? body.quantity : 1;
 
             // Check product exists and is available
             Product product = productDao.findById(productId);
@@ -86,7 +77,7 @@ public class CartServlet extends HttpServlet {
             }
 
             // Check if already in cart
-            CartItem existingItem = cartDao.findByUserAndProduct(userId, productId);
+            CartItem existingItem = CartStore.findByUserAndProduct(userId, productId);
             if (existingItem != null) {
                 // Update quantity
                 int newQuantity = existingItem.getQuantity() + quantity;
@@ -94,14 +85,15 @@ public class CartServlet extends HttpServlet {
                     JsonUtil.writeError(response, 400, "超出库存数量");
                     return;
                 }
-                cartDao.updateQuantity(existingItem.getId(), newQuantity);
+                CartStore.updateQuantity(userId, existingItem.getId(), newQuantity);
             } else {
                 // Add new item
-                CartItem item = new CartItem(userId, productId, quantity);
-                cartDao.create(item);
+                CartStore.add(userId, productId, quantity);
             }
 
             JsonUtil.writeSuccess(response, "添加成功", null);
+        } catch (JsonUtil.BodyTooLargeException e) {
+            JsonUtil.writeError(response, 413, "请求体过大");
         } catch (Exception e) {
             e.printStackTrace();
             JsonUtil.writeError(response, 500, "服务器错误");
@@ -111,39 +103,45 @@ public class CartServlet extends HttpServlet {
     @Override
     protected void doPut(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
             String pathInfo = request.getPathInfo();
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            JsonObject json = JsonUtil.readJson(request);
 
             if (pathInfo != null && pathInfo.equals("/selectAll")) {
                 // Select/unselect all
                 boolean selected = json.get("selected").getAsBoolean();
-                cartDao.updateAllSelected(userId, selected);
+                CartStore.updateAllSelected(userId, selected);
                 JsonUtil.writeSuccess(response, "更新成功", null);
                 return;
             }
 
-            // Update single item
+            // Update single item; only found if it is in this user's cart
             int itemId = Integer.parseInt(pathInfo.substring(1));
+            boolean found = true;
 
             if (json.has("quantity")) {
                 int quantity = json.get("quantity").getAsInt();
                 if (quantity <= 0) {
-                    cartDao.delete(itemId);
+                    found = CartStore.delete(userId, itemId);
                 } else {
-                    cartDao.updateQuantity(itemId, quantity);
+                    found = CartStore.updateQuantity(userId, itemId, quantity);
                 }
             }
 
-            if (json.has("selected")) {
+            if (found && json.has("selected")) {
                 boolean selected = json.get("selected").getAsBoolean();
-                cartDao.updateSelected(itemId, selected);
+                found = CartStore.updateSelected(userId, itemId, selected);
+            }
+
+            if (!found) {
+                JsonUtil.writeError(response, 404, "购物车商品不存在");
+                return;
             }
 
             JsonUtil.writeSuccess(response, "更新成功", null);
@@ -156,24 +154,28 @@ public class CartServlet extends HttpServlet {
     @Override
     protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
             String pathInfo = request.getPathInfo();
             
             if (pathInfo == null || pathInfo.equals("/")) {
                 // Clear all cart items
-                cartDao.clearCart(userId);
+                CartStore.clear(userId);
             } else if (pathInfo.equals("/selected")) {
                 // Delete selected items
-                cartDao.deleteSelected(userId);
+                CartStore.deleteSelected(userId);
             } else {
                 // Delete single item
                 int itemId = Integer.parseInt(pathInfo.substring(1));
-                cartDao.delete(itemId);
+                if (!CartStore.delete(userId, itemId)) {
+                    JsonUtil.writeError(response, 404, "购物车商品不存在");
+                    return;
+                }
             }
 
             JsonUtil.writeSuccess(response, "删除成功", null);
@@ -182,5 +184,80 @@ public class CartServlet extends HttpServlet {
             JsonUtil.writeError(response, 500, "服务器错误");
         }
     }
-}
 
+    private void handleBatch(HttpServletRequest request, HttpServletResponse response, int userId) throws IOException {
+        BatchRequest body = JsonUtil.readRequestBody(request, BatchRequest.class);
+        if (body == null || body.operations == null || body.operations.isEmpty()) {
+            JsonUtil.writeError(response, 400, "操作列表不能为空");
+            return;
+        }
+        if (body.operations.size() > MAX_BATCH_OPERATIONS) {
+            JsonUtil.writeError(response, 400, "单次最多 " + MAX_BATCH_OPERATIONS + " 项操作");
+            return;
+        }
+
+        List<CartStore.Operation> operations = new ArrayList<>(body.operations.size());
+        for (OperationRequest op : body.operations) {
+            boolean delete = Boolean.TRUE.equals(op.delete);
+            if (op.id == null || (!delete && op.quantity == null && op.selected == null)) {
+                JsonUtil.writeError(response, 400, "操作参数不完整");
+                return;
+            }
+            operations.add(new CartStore.Operation(op.id, op.quantity, op.selected, delete));
+        }
+
+        // All or nothing: ownership and stock are checked before anything is applied,
+        // and a failed write puts the cart back as it was
+        String error;
+        try {
+            error = CartStore.applyBatch(userId, operations);
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            JsonUtil.writeError(response, 500, "保存失败，请稍后重试");
+            return;
+        }
+        if (error != null) {
+            JsonUtil.writeError(response, 400, error);
+            return;
+        }
+        JsonUtil.writeSuccess(response, "更新成功", summarize(CartStore.findByUserId(userId)));
+    }
+
+    private Map<String, Object> summarize(List<CartItem> items) {
+        double totalAmount = 0;
+        int totalQuantity = 0;
+        int selectedCount = 0;
+
+        for (CartItem item : items) {
+            totalQuantity += item.getQuantity();
+            if (item.isSelected()) {
+                totalAmount += item.getSubtotal();
+                selectedCount++;
+            }
+        }
+
+        Map<String, Object> data = new HashMap<>();
+        data.put("items", items);
+        data.put("totalAmount", totalAmount);
+        data.put("totalQuantity", totalQuantity);
+        data.put("selectedCount", selectedCount);
+        data.put("allSelected", items.size() > 0 && selectedCount == items.size());
+        return data;
+    }
+
+    private static class BatchRequest {
+        private List<OperationRequest> operations;
+    }
+
+    private static class OperationRequest {
+        private Integer id;
+        private Integer quantity;
+        private Boolean selected;
+        private Boolean delete;
+    }
+
+    private static class AddCartRequest {
+        private Integer productId;
+        private Integer quantity;
+    }
+}
@@ -5,6 +5,7 @@ import com.lightshop.dao.FavoriteDao;
 import com.lightshop.dao.ProductDao;
 import com.lightshop.model.Favorite;
 import com.lightshop.model.Product;
+import com.lightshop.util.AuthPrincipal;
 import com.lightshop.util.JsonUtil;
 
 import javax.servlet.http.HttpServlet;
@@ -22,11 +23,12 @@ public class FavoriteServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
             String pathInfo = request.getPathInfo();
 
@@ -56,14 +58,14 @@ public class FavoriteServlet extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            JsonObject json = JsonUtil.readJson(request);
 
             int productId = json.get("productId").getAsInt();
 
@@ -98,11 +100,12 @@ public class FavoriteServlet extends HttpServlet {
     @Override
     protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
             String pathInfo = request.getPathInfo();
             if (pathInfo == null || pathInfo.equals("/")) {
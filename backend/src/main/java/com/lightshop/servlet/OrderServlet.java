@@ -1,9 +1,10 @@
 package com.lightshop.servlet;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
 import com.lightshop.dao.*;
 import com.lightshop.model.*;
+import com.lightshop.service.FlashSaleEngine;
+import com.lightshop.service.OrderExpiryService;
+import com.lightshop.util.AuthPrincipal;
 import com.lightshop.util.JsonUtil;
 import com.lightshop.util.StringUtil;
 
@@ -12,11 +13,12 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class OrderServlet extends HttpServlet {
     private final OrderDao orderDao = new OrderDao();
-    private final CartDao cartDao = new CartDao();
     private final ProductDao productDao = new ProductDao();
     private final AddressDao addressDao = new AddressDao();
     private final UserDao userDao = new UserDao();
@@ -24,11 +26,12 @@ public class OrderServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
             String pathInfo = request.getPathInfo();
 
@@ -38,10 +41,31 @@ public class OrderServlet extends HttpServlet {
                 int pageSize = getIntParam(request, "pageSize", 10);
                 Integer status = getIntParamOrNull(request, "status");
 
+                String cursor = request.getParameter("cursor");
+                if (cursor != null) {
+                    JsonUtil.writeCursorPage(request, response,
+                            after -> orderDao.findPageByUserId(userId, status, after, pageSize),
+                            () -> orderDao.countByUserId(userId, status));
+                    return;
+                }
+
                 List<Order> orders = orderDao.findByUserId(userId, status, page, pageSize);
                 int total = orderDao.countByUserId(userId, status);
 
                 JsonUtil.writePageData(response, orders, total, page, pageSize);
+            } else if (pathInfo.startsWith("/flash/")) {
+                // Poll the outcome of a queued flash sale order
+                FlashSaleEngine.Ticket ticket = FlashSaleEngine.getTicket(pathInfo.substring("/flash/".length()));
+                if (ticket == null || ticket.getUserId() != userId) {
+                    JsonUtil.writeError(response, 404, "排队记录不存在");
+                    return;
+                }
+
+                Map<String, Object> data = new HashMap<>();
+                data.put("orderNo", ticket.getOrderNo());
+                data.put("status", ticket.getStatus().name());
+                data.put("message", ticket.getMessage());
+                JsonUtil.writeSuccess(response, data);
             } else {
                 // Get order detail
                 String orderNo = pathInfo.substring(1);
@@ -68,18 +92,22 @@ public class OrderServlet extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            CreateOrderRequest body = JsonUtil.readRequestBody(request, CreateOrderRequest.class);
+            if (body == null || body.addressId == null) {
+                JsonUtil.writeError(response, 400, "收货地址无效");
+                return;
+            }
 
-            int addressId = json.get("addressId").getAsInt();
-            String remark = json.has("remark") ? json.get("remark").getAsString() : "";
-            boolean fromCart = json.has("fromCart") && json.get("fromCart").getAsBoolean();
+            int addressId = body.addressId;
+            String remark = body.remark != null ? body.remark : "";
+            boolean fromCart = Boolean.TRUE.equals(body.fromCart);
 
             // Validate address
             Address address = addressDao.findById(addressId);
@@ -93,7 +121,7 @@ public class OrderServlet extends HttpServlet {
 
             if (fromCart) {
                 // Create from cart (selected items)
-                List<CartItem> cartItems = cartDao.findSelectedByUserId(userId);
+                List<CartItem> cartItems = CartStore.findSelectedByUserId(userId);
                 if (cartItems.isEmpty()) {
                     JsonUtil.writeError(response, 400, "购物车中没有选中的商品");
                     return;
@@ -110,15 +138,10 @@ public class OrderServlet extends HttpServlet {
                         return;
                     }
 
-                    String productImage = product.getImages();
-                    if (productImage != null && productImage.startsWith("[")) {
-                        productImage = productImage.replace("[", "").replace("]", "").replace("\"", "").split(",")[0];
-                    }
-
                     OrderItem orderItem = new OrderItem(
                         product.getId(),
                         product.getName(),
-                        productImage,
+                        firstImage(product.getImages()),
                         product.getPrice(),
                         cartItem.getQuantity()
                     );
@@ -127,11 +150,25 @@ public class OrderServlet extends HttpServlet {
                 }
             } else {
                 // Create from direct buy
-                JsonArray items = json.getAsJsonArray("items");
-                for (int i = 0; i < items.size(); i++) {
-                    JsonObject item = items.get(i).getAsJsonObject();
-                    int productId = item.get("productId").getAsInt();
-                    int quantity = item.get("quantity").getAsInt();
+                List<ItemRequest> items = body.items != null ? body.items : new ArrayList<>();
+                for (ItemRequest item : items) {
+                    if (item == null || item.productId == null || item.quantity == null) {
+                        JsonUtil.writeError(response, 400, "订单商品无效");
+                        return;
+                    }
+                    if (item.quantity <= 0) {
+                        JsonUtil.writeError(response, 400, "商品数量无效");
+                        return;
+                    }
+                }
+                if (isFlashSale(items)) {
+                    handleFlashSale(items, userId, address, remark, response);
+                    return;
+                }
+
+                for (ItemRequest item : items) {
+                    int productId = item.productId;
+                    int quantity = item.quantity;
 
                     Product product = productDao.findById(productId);
                     if (product == null || product.getStatus() != 1) {
@@ -143,15 +180,10 @@ public class OrderServlet extends HttpServlet {
                         return;
                     }
 
-                    String productImage = product.getImages();
-                    if (productImage != null && productImage.startsWith("[")) {
-                        productImage = productImage.replace("[", "").replace("]", "").replace("\"", "").split(",")[0];
-                    }
-
                     OrderItem orderItem = new OrderItem(
                         product.getId(),
                         product.getName(),
-                        productImage,
+                        firstImage(product.getImages()),
                         product.getPrice(),
                         quantity
                     );
@@ -174,38 +206,125 @@ public class OrderServlet extends HttpServlet {
             order.setAddressSnapshot(JsonUtil.toJson(address));
             order.setRemark(remark);
 
-            int orderId = orderDao.create(order, orderItems);
+            // Stock is deducted and the cart cleared in the same transaction as the order
+            int orderId = orderDao.create(order, orderItems, fromCart);
+            if (orderId == OrderDao.OUT_OF_STOCK) {
+                JsonUtil.writeError(response, 400, describeShortage(orderItems));
+                return;
+            }
             if (orderId < 0) {
                 JsonUtil.writeError(response, 500, "创建订单失败");
                 return;
             }
 
-            // Deduct stock
-            for (OrderItem item : orderItems) {
-                productDao.updateStock(item.getProductId(), -item.getQuantity());
-            }
-
-            // Clear cart if from cart
+            order.setId(orderId);
+            OrderExpiryService.schedule(orderId);
             if (fromCart) {
-                cartDao.deleteSelected(userId);
+                // The order transaction removed the rows; keep the in-memory cart in step
+                List<Integer> orderedIds = new ArrayList<>(orderItems.size());
+                for (OrderItem item : orderItems) {
+                    orderedIds.add(item.getProductId());
+                }
+                CartStore.removeProducts(userId, orderedIds);
             }
-
-            order.setId(orderId);
             JsonUtil.writeSuccess(response, "创建订单成功", order);
+        } catch (JsonUtil.BodyTooLargeException e) {
+            JsonUtil.writeError(response, 413, "请求体过大");
         } catch (Exception e) {
             e.printStackTrace();
             JsonUtil.writeError(response, 500, "服务器错误");
         }
     }
 
+    private boolean isFlashSale(List<ItemRequest> items) {
+        if (items.isEmpty()) {
+            return false;
+        }
+        for (ItemRequest item : items) {
+            if (!FlashSaleEngine.isFlashSale(item.productId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Flash sale products are admitted from in-memory stock and written asynchronously
+    private void handleFlashSale(List<ItemRequest> items, int userId, Address address, String remark,
+                                 HttpServletResponse response) throws IOException {
+        List<OrderItem> orderItems = new ArrayList<>();
+        double totalAmount = 0;
+        for (ItemRequest item : items) {
+            int quantity = item.quantity;
+            Product product = FlashSaleEngine.getProduct(item.productId);
+            if (product == null || product.getStatus() != 1) {
+                JsonUtil.writeError(response, 400, "商品已下架");
+                return;
+            }
+
+            OrderItem orderItem = new OrderItem(
+                product.getId(),
+                product.getName(),
+                firstImage(product.getImages()),
+                product.getPrice(),
+                quantity
+            );
+            orderItems.add(orderItem);
+            totalAmount += orderItem.getSubtotal();
+        }
+
+        Order order = new Order();
+        order.setOrderNo(StringUtil.generateOrderNo());
+        order.setUserId(userId);
+        order.setTotalAmount(totalAmount);
+        order.setAddressId(address.getId());
+        order.setAddressSnapshot(JsonUtil.toJson(address));
+        order.setRemark(remark);
+
+        switch (FlashSaleEngine.admit(order, orderItems)) {
+            case ADMITTED:
+                Map<String, Object> data = new HashMap<>();
+                data.put("orderNo", order.getOrderNo());
+                data.put("status", FlashSaleEngine.Status.PENDING.name());
+                JsonUtil.writeSuccess(response, "排队中", data);
+                break;
+            case SOLD_OUT:
+                JsonUtil.writeError(response, 400, "商品已售罄");
+                break;
+            default:
+                JsonUtil.writeError(response, 429, "排队人数过多，请稍后再试");
+        }
+    }
+
+    private String firstImage(String images) {
+        if (images != null && images.startsWith("[")) {
+            return images.replace("[", "").replace("]", "").replace("\"", "").split(",")[0];
+        }
+        return images;
+    }
+
+    // Another checkout won the race for the remaining stock; find which line lost
+    private String describeShortage(List<OrderItem> orderItems) {
+        for (OrderItem item : orderItems) {
+            Product product = productDao.findById(item.getProductId());
+            if (product == null || product.getStatus() != 1) {
+                return "商品 " + item.getProductName() + " 已下架";
+            }
+            if (product.getStock() < item.getQuantity()) {
+                return "商品 " + product.getName() + " 库存不足";
+            }
+        }
+        return "商品库存不足";
+    }
+
     @Override
     protected void doPut(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
             String pathInfo = request.getPathInfo();
             if (pathInfo == null || pathInfo.equals("/")) {
@@ -260,12 +379,15 @@ public class OrderServlet extends HttpServlet {
             return;
         }
 
+        // Mark paid first: fails if the order expired or was cancelled meanwhile
+        if (!orderDao.updatePaidAt(order.getId())) {
+            JsonUtil.writeError(response, 400, "订单状态不允许支付");
+            return;
+        }
+
         // Deduct balance
         userDao.updateBalance(userId, -order.getTotalAmount());
 
-        // Update order status
-        orderDao.updatePaidAt(order.getId());
-
         // Update product sales
         for (OrderItem item : order.getItems()) {
             productDao.updateSales(item.getProductId(), item.getQuantity());
@@ -280,12 +402,11 @@ public class OrderServlet extends HttpServlet {
             return;
         }
 
-        // Restore stock
-        for (OrderItem item : order.getItems()) {
-            productDao.updateStock(item.getProductId(), item.getQuantity());
+        // Restores stock too, unless the order expired or was paid meanwhile
+        if (OrderExpiryService.cancel(order.getId()) == 0) {
+            JsonUtil.writeError(response, 400, "订单状态不允许取消");
+            return;
         }
-
-        orderDao.updateStatus(order.getId(), Order.STATUS_CANCELLED);
         JsonUtil.writeSuccess(response, "取消成功", null);
     }
 
@@ -322,5 +443,16 @@ public class OrderServlet extends HttpServlet {
             return null;
         }
     }
-}
 
+    private static class CreateOrderRequest {
+        private Integer addressId;
+        private String remark;
+        private Boolean fromCart;
+        private List<ItemRequest> items;
+    }
+
+    private static class ItemRequest {
+        private Integer productId;
+        private Integer quantity;
+    }
+}
@@ -16,6 +16,8 @@ import java.util.Map;
 public class ProductServlet extends HttpServlet {
     private final ProductDao productDao = new ProductDao();
     private final ReviewDao reviewDao = new ReviewDao();
+    // Upper bound for the hot/new/recommend list size
+    private static final int MAX_LIST_LIMIT = 50;
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
@@ -25,20 +27,26 @@ public class ProductServlet extends HttpServlet {
             if (pathInfo == null || pathInfo.equals("/")) {
                 // Get product list
                 getProductList(request, response);
+            } else if (pathInfo.equals("/search")) {
+                // Full-text search, ranked by relevance unless a sort is given
+                getProductList(request, response);
             } else if (pathInfo.equals("/hot")) {
                 // Get hot products
-                int limit = getIntParam(request, "limit", 8);
-                List<Product> products = productDao.findHotProducts(limit);
+                int limit = clampLimit(getIntParam(request, "limit", 8));
+                Integer categoryId = getIntParamOrNull(request, "categoryId");
+                List<Product> products = productDao.findHotProducts(limit, categoryId);
                 JsonUtil.writeSuccess(response, products);
             } else if (pathInfo.equals("/new")) {
                 // Get new products
-                int limit = getIntParam(request, "limit", 8);
-                List<Product> products = productDao.findNewProducts(limit);
+                int limit = clampLimit(getIntParam(request, "limit", 8));
+                Integer categoryId = getIntParamOrNull(request, "categoryId");
+                List<Product> products = productDao.findNewProducts(limit, categoryId);
                 JsonUtil.writeSuccess(response, products);
             } else if (pathInfo.equals("/recommend")) {
                 // Get recommended products
-                int limit = getIntParam(request, "limit", 8);
-                List<Product> products = productDao.findRecommended(limit);
+                int limit = clampLimit(getIntParam(request, "limit", 8));
+                boolean weighted = "true".equals(request.getParameter("weighted"));
+                List<Product> products = productDao.findRecommended(limit, weighted);
                 JsonUtil.writeSuccess(response, products);
             } else {
                 // Get product by ID
@@ -56,9 +64,17 @@ public class ProductServlet extends HttpServlet {
         int page = getIntParam(request, "page", 1);
         int pageSize = getIntParam(request, "pageSize", 12);
         Integer categoryId = getIntParamOrNull(request, "categoryId");
-        String keyword = request.getParameter("keyword");
+        String keyword = request.getParameter("keyword") != null ? request.getParameter("keyword") : request.getParameter("q");
         String sort = request.getParameter("sort");
 
+        String cursor = request.getParameter("cursor");
+        if (cursor != null) {
+            JsonUtil.writeCursorPage(request, response,
+                    after -> productDao.findPage(after, pageSize, categoryId, keyword, sort, true),
+                    () -> productDao.count(categoryId, keyword, true));
+            return;
+        }
+
         List<Product> products = productDao.findAll(page, pageSize, categoryId, keyword, sort, true);
         int total = productDao.count(categoryId, keyword, true);
 
@@ -83,6 +99,10 @@ public class ProductServlet extends HttpServlet {
         JsonUtil.writeSuccess(response, data);
     }
 
+    private int clampLimit(int limit) {
+        return Math.max(1, Math.min(limit, MAX_LIST_LIMIT));
+    }
+
     private int getIntParam(HttpServletRequest request, String name, int defaultValue) {
         String value = request.getParameter(name);
         if (value == null || value.isEmpty()) {
@@ -7,6 +7,7 @@ import com.lightshop.dao.ReviewDao;
 import com.lightshop.model.Order;
 import com.lightshop.model.OrderItem;
 import com.lightshop.model.Review;
+import com.lightshop.util.AuthPrincipal;
 import com.lightshop.util.JsonUtil;
 
 import javax.servlet.http.HttpServlet;
@@ -37,6 +38,14 @@ public class ReviewServlet extends HttpServlet {
                 int page = getIntParam(request, "page", 1);
                 int pageSize = getIntParam(request, "pageSize", 10);
 
+                String cursor = request.getParameter("cursor");
+                if (cursor != null) {
+                    JsonUtil.writeCursorPage(request, response,
+                            after -> reviewDao.findPageByProductId(productId, after, pageSize),
+                            () -> reviewDao.countByProductId(productId));
+                    return;
+                }
+
                 List<Review> reviews = reviewDao.findByProductId(productId, page, pageSize);
                 int total = reviewDao.countByProductId(productId);
 
@@ -58,14 +67,14 @@ public class ReviewServlet extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            JsonObject json = JsonUtil.readJson(request);
 
             int orderId = json.get("orderId").getAsInt();
             int orderItemId = json.get("orderItemId").getAsInt();
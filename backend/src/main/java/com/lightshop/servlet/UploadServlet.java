@@ -1,5 +1,6 @@
 package com.lightshop.servlet;
 
+import com.lightshop.util.AuthPrincipal;
 import com.lightshop.util.JsonUtil;
 import com.lightshop.util.StringUtil;
 
@@ -45,11 +46,12 @@ public class UploadServlet extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
             List<String> uploadedUrls = new ArrayList<>();
 
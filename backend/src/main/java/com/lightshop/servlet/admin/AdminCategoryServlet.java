@@ -41,8 +41,7 @@ public class AdminCategoryServlet extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            JsonObject json = JsonUtil.readJson(request);
 
             String name = json.has("name") ? json.get("name").getAsString() : null;
             String icon = json.has("icon") ? json.get("icon").getAsString() : "";
@@ -88,8 +87,7 @@ public class AdminCategoryServlet extends HttpServlet {
                 return;
             }
 
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            JsonObject json = JsonUtil.readJson(request);
 
             if (json.has("name")) category.setName(json.get("name").getAsString());
             if (json.has("icon")) category.setIcon(json.get("icon").getAsString());
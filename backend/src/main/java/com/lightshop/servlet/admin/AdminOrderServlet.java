@@ -6,6 +6,8 @@ import com.lightshop.dao.ProductDao;
 import com.lightshop.dao.UserDao;
 import com.lightshop.model.Order;
 import com.lightshop.model.OrderItem;
+import com.lightshop.service.FlashSaleEngine;
+import com.lightshop.service.OrderExpiryService;
 import com.lightshop.util.JsonUtil;
 
 import javax.servlet.http.HttpServlet;
@@ -31,6 +33,14 @@ public class AdminOrderServlet extends HttpServlet {
                 Integer status = getIntParamOrNull(request, "status");
                 String keyword = request.getParameter("keyword");
 
+                String cursor = request.getParameter("cursor");
+                if (cursor != null) {
+                    JsonUtil.writeCursorPage(request, response,
+                            after -> orderDao.findPage(status, keyword, after, pageSize),
+                            () -> orderDao.countAll(status, keyword));
+                    return;
+                }
+
                 List<Order> orders = orderDao.findAll(status, keyword, page, pageSize);
                 int total = orderDao.countAll(status, keyword);
 
@@ -82,8 +92,7 @@ public class AdminOrderServlet extends HttpServlet {
                     break;
                 default:
                     // Update status directly
-                    String body = JsonUtil.readRequestBody(request);
-                    JsonObject json = JsonUtil.parseJson(body);
+                    JsonObject json = JsonUtil.readJson(request);
                     if (json.has("status")) {
                         int status = json.get("status").getAsInt();
                         orderDao.updateStatus(order.getId(), status);
@@ -114,16 +123,20 @@ public class AdminOrderServlet extends HttpServlet {
             return;
         }
 
+        // Restores stock in the same transaction, so a concurrent refund can't do it twice
+        if (!orderDao.updateStatusWithReturn(order.getId(), order.getStatus(), Order.STATUS_REFUNDED, order.getItems())) {
+            JsonUtil.writeError(response, 400, "订单状态不允许退款");
+            return;
+        }
+
         // Refund to user balance
         userDao.updateBalance(order.getUserId(), order.getTotalAmount());
 
-        // Restore stock
         for (OrderItem item : order.getItems()) {
-            productDao.updateStock(item.getProductId(), item.getQuantity());
+            FlashSaleEngine.restock(item.getProductId(), item.getQuantity());
             productDao.updateSales(item.getProductId(), -item.getQuantity());
         }
 
-        orderDao.updateStatus(order.getId(), Order.STATUS_REFUNDED);
         JsonUtil.writeSuccess(response, "退款成功", null);
     }
 
@@ -133,17 +146,27 @@ public class AdminOrderServlet extends HttpServlet {
             return;
         }
 
-        // If paid, refund
-        if (order.getStatus() == Order.STATUS_PAID) {
-            userDao.updateBalance(order.getUserId(), order.getTotalAmount());
+        if (order.getStatus() == Order.STATUS_PENDING_PAYMENT) {
+            // Restores stock too, unless the order expired or was paid meanwhile
+            if (OrderExpiryService.cancel(order.getId()) == 0) {
+                JsonUtil.writeError(response, 400, "订单状态不允许取消");
+                return;
+            }
+            JsonUtil.writeSuccess(response, "取消成功", null);
+            return;
         }
 
-        // Restore stock
+        // Paid: restore stock with the status change, then refund
+        if (!orderDao.updateStatusWithReturn(order.getId(), Order.STATUS_PAID, Order.STATUS_CANCELLED, order.getItems())) {
+            JsonUtil.writeError(response, 400, "订单状态不允许取消");
+            return;
+        }
+        userDao.updateBalance(order.getUserId(), order.getTotalAmount());
+
         for (OrderItem item : order.getItems()) {
-            productDao.updateStock(item.getProductId(), item.getQuantity());
+            FlashSaleEngine.restock(item.getProductId(), item.getQuantity());
         }
 
-        orderDao.updateStatus(order.getId(), Order.STATUS_CANCELLED);
         JsonUtil.writeSuccess(response, "取消成功", null);
     }
 
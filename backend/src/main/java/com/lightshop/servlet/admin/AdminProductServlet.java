@@ -3,6 +3,7 @@ package com.lightshop.servlet.admin;
 import com.google.gson.JsonObject;
 import com.lightshop.dao.ProductDao;
 import com.lightshop.model.Product;
+import com.lightshop.service.FlashSaleEngine;
 import com.lightshop.util.JsonUtil;
 import com.lightshop.util.StringUtil;
 
@@ -28,6 +29,14 @@ public class AdminProductServlet extends HttpServlet {
                 String keyword = request.getParameter("keyword");
                 String sort = request.getParameter("sort");
 
+                String cursor = request.getParameter("cursor");
+                if (cursor != null) {
+                    JsonUtil.writeCursorPage(request, response,
+                            after -> productDao.findPage(after, pageSize, categoryId, keyword, sort, null),
+                            () -> productDao.count(categoryId, keyword, null));
+                    return;
+                }
+
                 List<Product> products = productDao.findAll(page, pageSize, categoryId, keyword, sort, null);
                 int total = productDao.count(categoryId, keyword, null);
 
@@ -51,8 +60,7 @@ public class AdminProductServlet extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            JsonObject json = JsonUtil.readJson(request);
 
             String name = json.has("name") ? json.get("name").getAsString() : null;
             String description = json.has("description") ? json.get("description").getAsString() : "";
@@ -101,15 +109,27 @@ public class AdminProductServlet extends HttpServlet {
                 return;
             }
 
-            int productId = Integer.parseInt(pathInfo.substring(1));
+            String[] parts = pathInfo.substring(1).split("/");
+            int productId = Integer.parseInt(parts[0]);
             Product product = productDao.findById(productId);
             if (product == null) {
                 JsonUtil.writeError(response, 404, "商品不存在");
                 return;
             }
 
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            JsonObject json = JsonUtil.readJson(request);
+
+            if (parts.length > 1 && parts[1].equals("flash-sale")) {
+                // Toggle seckill mode for this product
+                boolean enabled = json.has("enabled") && json.get("enabled").getAsBoolean();
+                boolean ok = enabled ? FlashSaleEngine.enable(productId) : FlashSaleEngine.disable(productId);
+                if (!ok && enabled) {
+                    JsonUtil.writeError(response, 500, "设置秒杀失败");
+                    return;
+                }
+                JsonUtil.writeSuccess(response, enabled ? "已开启秒杀" : "已关闭秒杀", null);
+                return;
+            }
 
             if (json.has("name")) product.setName(json.get("name").getAsString());
             if (json.has("description")) product.setDescription(json.get("description").getAsString());
@@ -121,6 +141,7 @@ public class AdminProductServlet extends HttpServlet {
             if (json.has("status")) product.setStatus(json.get("status").getAsInt());
 
             productDao.update(product);
+            FlashSaleEngine.refresh(productId);
             JsonUtil.writeSuccess(response, "更新成功", product);
         } catch (Exception e) {
             e.printStackTrace();
@@ -139,6 +160,7 @@ public class AdminProductServlet extends HttpServlet {
 
             int productId = Integer.parseInt(pathInfo.substring(1));
             productDao.delete(productId);
+            FlashSaleEngine.disable(productId);
 
             JsonUtil.writeSuccess(response, "删除成功", null);
         } catch (Exception e) {
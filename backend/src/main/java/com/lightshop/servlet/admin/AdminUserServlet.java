@@ -3,6 +3,7 @@ package com.lightshop.servlet.admin;
 import com.google.gson.JsonObject;
 import com.lightshop.dao.UserDao;
 import com.lightshop.model.User;
+import com.lightshop.util.CursorPage;
 import com.lightshop.util.JsonUtil;
 
 import javax.servlet.http.HttpServlet;
@@ -28,6 +29,19 @@ public class AdminUserServlet extends HttpServlet {
                 int pageSize = getIntParam(request, "pageSize", 10);
                 String keyword = request.getParameter("keyword");
 
+                String cursor = request.getParameter("cursor");
+                if (cursor != null) {
+                    JsonUtil.writeCursorPage(request, response, after -> {
+                        CursorPage<User> result = userDao.findPage(after, pageSize, keyword);
+                        List<Map<String, Object>> userList = new ArrayList<>();
+                        for (User user : result.getList()) {
+                            userList.add(buildUserInfo(user));
+                        }
+                        return new CursorPage<>(userList, result.getNextCursor());
+                    }, () -> userDao.count(keyword));
+                    return;
+                }
+
                 List<User> users = userDao.findAll(page, pageSize, keyword);
                 int total = userDao.count(keyword);
 
@@ -70,8 +84,7 @@ public class AdminUserServlet extends HttpServlet {
                 return;
             }
 
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            JsonObject json = JsonUtil.readJson(request);
 
             if (json.has("status")) {
                 user.setStatus(json.get("status").getAsInt());
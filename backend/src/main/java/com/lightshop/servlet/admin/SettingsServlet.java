@@ -32,8 +32,7 @@ public class SettingsServlet extends HttpServlet {
     @Override
     protected void doPut(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            JsonObject json = JsonUtil.readJson(request);
 
             Settings settings = settingsDao.get();
 
@@ -61,8 +60,7 @@ public class SettingsServlet extends HttpServlet {
             
             // Handle banner operations
             if (uri.contains("/banners")) {
-                String body = JsonUtil.readRequestBody(request);
-                JsonObject json = JsonUtil.parseJson(body);
+                JsonObject json = JsonUtil.readJson(request);
 
                 String title = json.has("title") ? json.get("title").getAsString() : "";
                 String image = json.has("image") ? json.get("image").getAsString() : "";
@@ -0,0 +1,46 @@
+package com.lightshop.servlet.admin;
+
+import com.lightshop.dao.CartStore;
+import com.lightshop.dao.ProductDao;
+import com.lightshop.dao.StockLedger;
+import com.lightshop.filter.CompressionFilter;
+import com.lightshop.filter.RateLimitFilter;
+import com.lightshop.filter.ResponseCacheFilter;
+import com.lightshop.service.FlashSaleEngine;
+import com.lightshop.service.OrderExpiryService;
+import com.lightshop.util.DatabaseUtil;
+import com.lightshop.util.JsonUtil;
+import com.lightshop.util.JwtUtil;
+import com.lightshop.util.PasswordUtil;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runtime statistics of the pools, caches and background workers. Kept off
+ * the public health check since they describe the server's internals.
+ */
+public class StatsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Map<String, Object> data = new HashMap<>();
+        data.put("timestamp", System.currentTimeMillis());
+        data.put("database", DatabaseUtil.getStats());
+        data.put("productCache", ProductDao.getCacheStats());
+        data.put("stockLedger", StockLedger.getStats());
+        data.put("cartStore", CartStore.getStats());
+        data.put("authCache", JwtUtil.getCacheStats());
+        data.put("passwordHashing", PasswordUtil.getStats());
+        data.put("flashSale", FlashSaleEngine.getStats());
+        data.put("orderExpiry", OrderExpiryService.getStats());
+        data.put("rateLimit", RateLimitFilter.getStats());
+        data.put("compression", CompressionFilter.getStats());
+        data.put("responseCache", ResponseCacheFilter.getStats());
+        JsonUtil.writeSuccess(response, data);
+    }
+}
@@ -8,12 +8,15 @@ import com.lightshop.util.JwtUtil;
 import com.lightshop.util.PasswordUtil;
 import com.lightshop.util.StringUtil;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 public class LoginServlet extends HttpServlet {
     private final UserDao userDao = new UserDao();
@@ -21,8 +24,7 @@ public class LoginServlet extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            JsonObject json = JsonUtil.readJson(request);
 
             String username = json.has("username") ? json.get("username").getAsString() : null;
             String password = json.has("password") ? json.get("password").getAsString() : null;
@@ -40,33 +42,60 @@ public class LoginServlet extends HttpServlet {
                 return;
             }
 
-            // Check password
-            if (!PasswordUtil.checkPassword(password, user.getPassword())) {
-                JsonUtil.writeError(response, 400, "用户名或密码错误");
-                return;
-            }
-
-            // Check status
-            if (user.getStatus() != 1) {
-                JsonUtil.writeError(response, 400, "账号已被禁用");
+            // Check password off the request thread
+            CompletableFuture<Boolean> check;
+            try {
+                check = PasswordUtil.checkPasswordAsync(password, user.getPassword());
+            } catch (RejectedExecutionException e) {
+                JsonUtil.writeError(response, 429, "登录请求过多，请稍后再试");
                 return;
             }
 
-            // Generate token
-            String token = JwtUtil.generateToken(user.getId(), user.getUsername(), user.getRole());
-
-            // Build response
-            Map<String, Object> data = new HashMap<>();
-            data.put("token", token);
-            data.put("user", buildUserInfo(user));
-
-            JsonUtil.writeSuccess(response, "登录成功", data);
+            AsyncContext async = request.startAsync();
+            check.whenComplete((matches, error) -> async.start(() -> {
+                HttpServletResponse asyncResponse = (HttpServletResponse) async.getResponse();
+                try {
+                    if (error != null) {
+                        error.printStackTrace();
+                        JsonUtil.writeError(asyncResponse, 500, "服务器错误");
+                    } else {
+                        finishLogin(user, matches, asyncResponse);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    async.complete();
+                }
+            }));
         } catch (Exception e) {
             e.printStackTrace();
             JsonUtil.writeError(response, 500, "服务器错误");
         }
     }
 
+    private void finishLogin(User user, boolean passwordMatches, HttpServletResponse response) throws IOException {
+        if (!passwordMatches) {
+            JsonUtil.writeError(response, 400, "用户名或密码错误");
+            return;
+        }
+
+        // Check status
+        if (user.getStatus() != 1) {
+            JsonUtil.writeError(response, 400, "账号已被禁用");
+            return;
+        }
+
+        // Generate token
+        String token = JwtUtil.generateToken(user.getId(), user.getUsername(), user.getRole());
+
+        // Build response
+        Map<String, Object> data = new HashMap<>();
+        data.put("token", token);
+        data.put("user", buildUserInfo(user));
+
+        JsonUtil.writeSuccess(response, "登录成功", data);
+    }
+
     private Map<String, Object> buildUserInfo(User user) {
         Map<String, Object> info = new HashMap<>();
         info.put("id", user.getId());
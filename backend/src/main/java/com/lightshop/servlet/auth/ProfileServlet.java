@@ -3,16 +3,20 @@ package com.lightshop.servlet.auth;
 import com.google.gson.JsonObject;
 import com.lightshop.dao.UserDao;
 import com.lightshop.model.User;
+import com.lightshop.util.AuthPrincipal;
 import com.lightshop.util.JsonUtil;
 import com.lightshop.util.PasswordUtil;
 import com.lightshop.util.StringUtil;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ProfileServlet extends HttpServlet {
     private final UserDao userDao = new UserDao();
@@ -20,11 +24,12 @@ public class ProfileServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
             User user = userDao.findById(userId);
             if (user == null) {
@@ -42,11 +47,12 @@ public class ProfileServlet extends HttpServlet {
     @Override
     protected void doPut(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            Integer userId = (Integer) request.getAttribute("userId");
-            if (userId == null) {
+            AuthPrincipal principal = AuthPrincipal.from(request);
+            if (principal == null) {
                 JsonUtil.writeError(response, 401, "未登录");
                 return;
             }
+            int userId = principal.getUserId();
 
             User user = userDao.findById(userId);
             if (user == null) {
@@ -54,8 +60,7 @@ public class ProfileServlet extends HttpServlet {
                 return;
             }
 
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            JsonObject json = JsonUtil.readJson(request);
 
             // Update fields
             if (json.has("email") && !json.get("email").isJsonNull()) {
@@ -88,21 +93,17 @@ public class ProfileServlet extends HttpServlet {
                 String newPassword = json.get("newPassword").getAsString();
 
                 if (StringUtil.isNotEmpty(oldPassword) && StringUtil.isNotEmpty(newPassword)) {
-                    if (!PasswordUtil.checkPassword(oldPassword, user.getPassword())) {
-                        JsonUtil.writeError(response, 400, "原密码错误");
-                        return;
-                    }
-
+                    // Validate first so malformed input never costs a bcrypt round
                     if (!StringUtil.isValidPassword(newPassword)) {
                         JsonUtil.writeError(response, 400, "新密码长度应为6-32位");
                         return;
                     }
-
-                    userDao.updatePassword(userId, PasswordUtil.hashPassword(newPassword));
+                    changePassword(request, response, user, oldPassword, newPassword);
+                    return;
                 }
             }
 
-            userDao.update(user);
+            userDao.updateProfile(user);
             JsonUtil.writeSuccess(response, "更新成功", buildUserInfo(user));
         } catch (Exception e) {
             e.printStackTrace();
@@ -110,6 +111,43 @@ public class ProfileServlet extends HttpServlet {
         }
     }
 
+    // Verify the old password and hash the new one on the hashing pool, then finish asynchronously
+    private void changePassword(HttpServletRequest request, HttpServletResponse response, User user,
+                                String oldPassword, String newPassword) throws IOException {
+        CompletableFuture<String> change;
+        try {
+            change = PasswordUtil.submit(() ->
+                PasswordUtil.checkPassword(oldPassword, user.getPassword()) ? PasswordUtil.hashPassword(newPassword) : null
+            );
+        } catch (RejectedExecutionException e) {
+            JsonUtil.writeError(response, 429, "请求过多，请稍后再试");
+            return;
+        }
+
+        AsyncContext async = request.startAsync();
+        change.whenComplete((hashedPassword, error) -> async.start(() -> {
+            HttpServletResponse asyncResponse = (HttpServletResponse) async.getResponse();
+            try {
+                if (error != null) {
+                    error.printStackTrace();
+                    JsonUtil.writeError(asyncResponse, 500, "服务器错误");
+                } else if (hashedPassword == null) {
+                    JsonUtil.writeError(asyncResponse, 400, "原密码错误");
+                } else {
+                    userDao.updatePassword(user.getId(), hashedPassword);
+                    userDao.updateProfile(user);
+                    // Balance or role may have changed during the hashing; answer with the current row
+                    User current = userDao.findById(user.getId());
+                    JsonUtil.writeSuccess(asyncResponse, "更新成功", buildUserInfo(current != null ? current : user));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                async.complete();
+            }
+        }));
+    }
+
     private Map<String, Object> buildUserInfo(User user) {
         Map<String, Object> info = new HashMap<>();
         info.put("id", user.getId());
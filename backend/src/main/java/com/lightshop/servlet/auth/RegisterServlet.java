@@ -8,12 +8,15 @@ import com.lightshop.util.JwtUtil;
 import com.lightshop.util.PasswordUtil;
 import com.lightshop.util.StringUtil;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 public class RegisterServlet extends HttpServlet {
     private final UserDao userDao = new UserDao();
@@ -21,8 +24,7 @@ public class RegisterServlet extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            String body = JsonUtil.readRequestBody(request);
-            JsonObject json = JsonUtil.parseJson(body);
+            JsonObject json = JsonUtil.readJson(request);
 
             String username = json.has("username") ? json.get("username").getAsString() : null;
             String password = json.has("password") ? json.get("password").getAsString() : null;
@@ -67,34 +69,63 @@ public class RegisterServlet extends HttpServlet {
                 return;
             }
 
-            // Create user
-            User user = new User(username, PasswordUtil.hashPassword(password), email);
-            user.setPhone(phone);
-            user.setBalance(100); // Give new users 100 initial balance for testing
-
-            int userId = userDao.create(user);
-            if (userId < 0) {
-                JsonUtil.writeError(response, 500, "注册失败，请稍后重试");
+            // Hash the password off the request thread
+            CompletableFuture<String> hash;
+            try {
+                hash = PasswordUtil.hashPasswordAsync(password);
+            } catch (RejectedExecutionException e) {
+                JsonUtil.writeError(response, 429, "注册请求过多，请稍后再试");
                 return;
             }
 
-            user.setId(userId);
-
-            // Generate token
-            String token = JwtUtil.generateToken(user.getId(), user.getUsername(), user.getRole());
-
-            // Build response
-            Map<String, Object> data = new HashMap<>();
-            data.put("token", token);
-            data.put("user", buildUserInfo(user));
-
-            JsonUtil.writeSuccess(response, "注册成功", data);
+            AsyncContext async = request.startAsync();
+            hash.whenComplete((hashedPassword, error) -> async.start(() -> {
+                HttpServletResponse asyncResponse = (HttpServletResponse) async.getResponse();
+                try {
+                    if (error != null) {
+                        error.printStackTrace();
+                        JsonUtil.writeError(asyncResponse, 500, "服务器错误");
+                    } else {
+                        finishRegister(username, hashedPassword, email, phone, asyncResponse);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    async.complete();
+                }
+            }));
         } catch (Exception e) {
             e.printStackTrace();
             JsonUtil.writeError(response, 500, "服务器错误");
         }
     }
 
+    private void finishRegister(String username, String hashedPassword, String email, String phone,
+                                HttpServletResponse response) throws IOException {
+        // Create user
+        User user = new User(username, hashedPassword, email);
+        user.setPhone(phone);
+        user.setBalance(100); // Give new users 100 initial balance for testing
+
+        int userId = userDao.create(user);
+        if (userId < 0) {
+            JsonUtil.writeError(response, 500, "注册失败，请稍后重试");
+            return;
+        }
+
+        user.setId(userId);
+
+        // Generate token
+        String token = JwtUtil.generateToken(user.getId(), user.getUsername(), user.getRole());
+
+        // Build response
+        Map<String, Object> data = new HashMap<>();
+        data.put("token", token);
+        data.put("user", buildUserInfo(user));
+
+        JsonUtil.writeSuccess(response, "注册成功", data);
+    }
+
     private Map<String, Object> buildUserInfo(User user) {
         Map<String, Object> info = new HashMap<>();
         info.put("id", user.getId());
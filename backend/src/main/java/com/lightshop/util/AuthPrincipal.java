@@ -0,0 +1,56 @@
+package com.lightshop.util;
+
+import javax.servlet.ServletRequest;
+
+/**
+ * The caller identity from a verified JWT. AuthFilter stores one on each
+ * authenticated request under {@link #ATTRIBUTE}.
+ */
+public final class AuthPrincipal {
+    public static final String ATTRIBUTE = "principal";
+
+    private final int userId;
+    private final String username;
+    private final int role;
+    private final long expiresAt;
+
+    public AuthPrincipal(int userId, String username, int role, long expiresAt) {
+        this.userId = userId;
+        this.username = username;
+        this.role = role;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * The principal AuthFilter stored on the request, or null when the
+     * request wasn't authenticated.
+     */
+    public static AuthPrincipal from(ServletRequest request) {
+        Object attribute = request.getAttribute(ATTRIBUTE);
+        return attribute instanceof AuthPrincipal ? (AuthPrincipal) attribute : null;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public int getRole() {
+        return role;
+    }
+
+    public boolean isAdmin() {
+        return role == 1;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expiresAt;
+    }
+}
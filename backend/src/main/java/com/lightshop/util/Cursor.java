@@ -0,0 +1,49 @@
+package com.lightshop.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position in a keyset-paginated listing: the sort key and id of the last row
+ * a client has seen. Encoded as an opaque URL-safe token so clients never
+ * depend on its contents.
+ */
+public final class Cursor {
+    private final String key;
+    private final int id;
+
+    public Cursor(String key, int id) {
+        this.key = key == null ? "" : key;
+        this.id = id;
+    }
+
+    /**
+     * Decodes a token from a request. Returns null for an empty token (first
+     * page) and throws IllegalArgumentException if the token is malformed.
+     */
+    public static Cursor decode(String token) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        // The key may itself contain '|', the id never does
+        int separator = raw.lastIndexOf('|');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+        return new Cursor(raw.substring(0, separator), Integer.parseInt(raw.substring(separator + 1)));
+    }
+
+    public String encode() {
+        String raw = key + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getId() {
+        return id;
+    }
+}
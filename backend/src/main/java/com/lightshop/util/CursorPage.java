@@ -0,0 +1,26 @@
+package com.lightshop.util;
+
+import java.util.List;
+
+public class CursorPage<T> {
+    private final List<T> list;
+    private final String nextCursor;
+
+    public CursorPage(List<T> list, String nextCursor) {
+        this.list = list;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getList() {
+        return list;
+    }
+
+    // Null on the last page
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
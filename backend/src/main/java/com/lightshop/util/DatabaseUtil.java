@@ -1,13 +1,32 @@
 package com.lightshop.util;
 
+import org.sqlite.SQLiteConfig;
+
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class DatabaseUtil {
+    private static final int DEFAULT_POOL_SIZE = 10;
+    private static final int DEFAULT_POOL_MIN_IDLE = 2;
+    private static final long DEFAULT_POOL_MAX_WAIT_MS = 5000;
+    private static final long DEFAULT_POOL_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+    private static final int DEFAULT_WRITE_QUEUE_SIZE = 10000;
+    private static final long DEFAULT_GROUP_COMMIT_WINDOW_MS = 2;
+    private static final int DEFAULT_GROUP_COMMIT_MAX_OPS = 256;
+    private static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+    private static final int BUSY_TIMEOUT_MS = 5000;
+
     private static String dbPath;
     private static boolean initialized = false;
+    private static ConnectionPool pool;
+    private static DatabaseWriter writer;
 
     public static void init(String path) {
         dbPath = path;
@@ -22,18 +41,151 @@ public class DatabaseUtil {
         }
     }
 
+    /**
+     * Borrows a read-only connection from the pool. Writes must go through
+     * {@link #executeWrite(SqlWork)}.
+     */
     public static Connection getConnection() throws SQLException {
+        return getPool().borrow();
+    }
+
+    /**
+     * Runs the work on the single writer thread and returns once the batch it
+     * was group-committed with is durable. If the work throws, only its own
+     * changes are rolled back and the exception is rethrown to the caller.
+     */
+    public static <T> T executeWrite(SqlWork<T> work) throws SQLException {
+        return getWriter().execute(work);
+    }
+
+    /**
+     * Queues the work for the next group commit without blocking. The future
+     * completes when the batch commits, or exceptionally if the work fails.
+     */
+    public static <T> CompletableFuture<T> submitWrite(SqlWork<T> work) {
+        return getWriter().submit(work);
+    }
+
+    public static Map<String, Object> getStats() {
+        ConnectionPool readPool = getPool();
+        DatabaseWriter dbWriter = getWriter();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("readPoolSize", readPool.getMaxSize());
+        stats.put("readPoolActive", readPool.getActiveCount());
+        stats.put("readPoolIdle", readPool.getIdleCount());
+        stats.put("writeQueue", dbWriter.getQueueSize());
+        stats.put("writeCommits", dbWriter.getBatchCount());
+        stats.put("writes", dbWriter.getWriteCount());
+        stats.put("statementCacheHits", StatementCache.getHits());
+        stats.put("statementCacheMisses", StatementCache.getMisses());
+        stats.put("statementCacheEvictions", StatementCache.getEvictions());
+        return stats;
+    }
+
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        if (writer != null) {
+            writer.shutdown();
+            writer = null;
+        }
+    }
+
+    private static synchronized ConnectionPool getPool() {
+        if (pool == null) {
+            // The writer switches the database to WAL, so it has to exist before any reader opens
+            getWriter();
+
+            SQLiteConfig config = new SQLiteConfig();
+            config.setReadOnly(true);
+            config.setBusyTimeout(BUSY_TIMEOUT_MS);
+            pool = new ConnectionPool(
+                getUrl(),
+                config.toProperties(),
+                getEnvInt("DB_POOL_SIZE", DEFAULT_POOL_SIZE),
+                getEnvInt("DB_POOL_MIN_IDLE", DEFAULT_POOL_MIN_IDLE),
+                getEnvLong("DB_POOL_MAX_WAIT_MS", DEFAULT_POOL_MAX_WAIT_MS),
+                getEnvLong("DB_POOL_IDLE_TIMEOUT_MS", DEFAULT_POOL_IDLE_TIMEOUT_MS),
+                getStatementCacheSize()
+            );
+        }
+        return pool;
+    }
+
+    private static synchronized DatabaseWriter getWriter() {
+        if (writer == null) {
+            SQLiteConfig config = new SQLiteConfig();
+            config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+            config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+            config.setBusyTimeout(BUSY_TIMEOUT_MS);
+            try {
+                writer = new DatabaseWriter(
+                    StatementCache.wrap(DriverManager.getConnection(getUrl(), config.toProperties()), getStatementCacheSize()),
+                    getEnvInt("DB_WRITE_QUEUE_SIZE", DEFAULT_WRITE_QUEUE_SIZE),
+                    getEnvLong("DB_GROUP_COMMIT_WINDOW_MS", DEFAULT_GROUP_COMMIT_WINDOW_MS),
+                    getEnvInt("DB_GROUP_COMMIT_MAX_OPS", DEFAULT_GROUP_COMMIT_MAX_OPS)
+                );
+            } catch (SQLException e) {
+                throw new RuntimeException("Failed to open database writer connection", e);
+            }
+        }
+        return writer;
+    }
+
+    private static int getStatementCacheSize() {
+        return getEnvInt("DB_STATEMENT_CACHE_SIZE", DEFAULT_STATEMENT_CACHE_SIZE);
+    }
+
+    private static String getUrl() {
         if (dbPath == null) {
             dbPath = System.getenv("DB_PATH");
             if (dbPath == null) {
                 dbPath = "./data/lightshop.db";
             }
         }
-        return DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        return "jdbc:sqlite:" + dbPath;
+    }
+
+    public static int getEnvInt(String name, int defaultValue) {
+        return (int) getEnvLong(name, defaultValue);
+    }
+
+    public static long getEnvLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     private static void initDatabase() {
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement()) {
+        try {
+            executeWrite(conn -> {
+                createSchema(conn);
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to initialize database", e);
+        }
+    }
+
+    private static boolean tableExists(Connection conn, String name) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM sqlite_master WHERE name = ?")) {
+            stmt.setString(1, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static void createSchema(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
             // Users table
             stmt.execute(
                 "CREATE TABLE IF NOT EXISTS users (" +
@@ -211,14 +363,78 @@ public class DatabaseUtil {
                 ")"
             );
 
+            // Full-text index over product name/description. Trigram tokens match
+            // any 3+ character substring, which also covers Chinese text.
+            boolean ftsExists = tableExists(conn, "products_fts");
+            stmt.execute(
+                "CREATE VIRTUAL TABLE IF NOT EXISTS products_fts USING fts5(" +
+                "    name, description, content='products', content_rowid='id', tokenize='trigram'" +
+                ")"
+            );
+            stmt.execute(
+                "CREATE TRIGGER IF NOT EXISTS products_fts_insert AFTER INSERT ON products BEGIN " +
+                "    INSERT INTO products_fts(rowid, name, description) VALUES (new.id, new.name, new.description); " +
+                "END"
+            );
+            stmt.execute(
+                "CREATE TRIGGER IF NOT EXISTS products_fts_delete AFTER DELETE ON products BEGIN " +
+                "    INSERT INTO products_fts(products_fts, rowid, name, description) VALUES ('delete', old.id, old.name, old.description); " +
+                "END"
+            );
+            // Stock/sales updates don't touch indexed columns, so they don't pay for re-indexing
+            stmt.execute(
+                "CREATE TRIGGER IF NOT EXISTS products_fts_update AFTER UPDATE OF name, description ON products BEGIN " +
+                "    INSERT INTO products_fts(products_fts, rowid, name, description) VALUES ('delete', old.id, old.name, old.description); " +
+                "    INSERT INTO products_fts(rowid, name, description) VALUES (new.id, new.name, new.description); " +
+                "END"
+            );
+            if (!ftsExists) {
+                // Index products that existed before the full-text table did
+                stmt.execute("INSERT INTO products_fts(products_fts) VALUES ('rebuild')");
+            }
+
+            // Flash sale products: stock for these is admitted from memory
+            stmt.execute(
+                "CREATE TABLE IF NOT EXISTS flash_sales (" +
+                "    product_id INTEGER PRIMARY KEY," +
+                "    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
+                "    FOREIGN KEY (product_id) REFERENCES products(id)" +
+                ")"
+            );
+
+            // Append-only stock ledger, folded into products.stock by StockLedger's compactor
+            stmt.execute(
+                "CREATE TABLE IF NOT EXISTS stock_movements (" +
+                "    id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "    product_id INTEGER NOT NULL," +
+                "    delta INTEGER NOT NULL," +
+                "    reason VARCHAR(20) NOT NULL," +
+                "    order_id INTEGER," +
+                "    folded INTEGER DEFAULT 0," +
+                "    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
+                ")"
+            );
+
             // Create indexes
             stmt.execute("CREATE INDEX IF NOT EXISTS idx_products_category ON products(category_id)");
             stmt.execute("CREATE INDEX IF NOT EXISTS idx_products_status ON products(status)");
             stmt.execute("CREATE INDEX IF NOT EXISTS idx_orders_user ON orders(user_id)");
             stmt.execute("CREATE INDEX IF NOT EXISTS idx_orders_status ON orders(status)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_order_items_order ON order_items(order_id)");
             stmt.execute("CREATE INDEX IF NOT EXISTS idx_cart_user ON cart_items(user_id)");
             stmt.execute("CREATE INDEX IF NOT EXISTS idx_favorites_user ON favorites(user_id)");
             stmt.execute("CREATE INDEX IF NOT EXISTS idx_reviews_product ON reviews(product_id)");
+            // Sort keys for keyset pagination; the rowid tie-breaker is implicit in each index
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_products_price ON products(price)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_products_sales ON products(sales)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_products_created ON products(created_at)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_orders_user_created ON orders(user_id, created_at)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_orders_created ON orders(created_at)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_users_created ON users(created_at)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_reviews_product_created ON reviews(product_id, created_at)");
+            // Only the unfolded tail is read per product; folded rows stay out of the index
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_stock_movements_unfolded ON stock_movements(product_id) WHERE folded = 0");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_stock_movements_product ON stock_movements(product_id, created_at)");
 
             // Insert default admin user if not exists (password: admin123)
             String adminPassword = PasswordUtil.hashPassword("admin123");
@@ -271,8 +487,6 @@ public class DatabaseUtil {
             stmt.execute("INSERT OR IGNORE INTO banners (id, title, image, link, sort_order, status) VALUES (3, '限时特惠', 'https://picsum.photos/seed/banner3/1200/400', '/products?sort=price_asc', 3, 1)");
 
             System.out.println("Database initialized with sample data successfully");
-        } catch (SQLException e) {
-            throw new RuntimeException("Failed to initialize database", e);
         }
     }
 
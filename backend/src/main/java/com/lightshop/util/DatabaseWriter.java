@@ -0,0 +1,214 @@
+package com.lightshop.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the only read-write SQLite connection and a single thread that applies
+ * every write. Writes submitted within a short window are group-committed:
+ * each one runs inside its own savepoint, the batch shares one transaction
+ * (and one fsync), and every caller's future completes once it has committed.
+ */
+public class DatabaseWriter {
+    private final Connection connection;
+    private final BlockingQueue<WriteTask<?>> queue;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+
+    public DatabaseWriter(Connection connection, int queueCapacity, long windowMillis, int maxBatchSize) throws SQLException {
+        this.connection = connection;
+        this.connection.setAutoCommit(false);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.writerThread = new Thread(this::run, "lightshop-db-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    public <T> CompletableFuture<T> submit(SqlWork<T> work) {
+        if (Thread.currentThread() == writerThread) {
+            // Nested write issued from inside another write task: join its transaction
+            try {
+                return CompletableFuture.completedFuture(work.execute(connection));
+            } catch (SQLException | RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        WriteTask<T> task = new WriteTask<>(work);
+        if (!running) {
+            task.future.completeExceptionally(new SQLException("Database writer is shut down"));
+        } else if (!queue.offer(task)) {
+            task.future.completeExceptionally(new SQLException("Database write queue is full"));
+        }
+        return task.future;
+    }
+
+    public <T> T execute(SqlWork<T> work) throws SQLException {
+        CompletableFuture<T> future = submit(work);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for database write", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SQLException("Database write failed", cause);
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    public void shutdown() {
+        running = false;
+        writerThread.interrupt();
+        try {
+            writerThread.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        WriteTask<?> task;
+        while ((task = queue.poll()) != null) {
+            task.future.completeExceptionally(new SQLException("Database writer is shut down"));
+        }
+        DatabaseUtil.close(connection);
+    }
+
+    private void run() {
+        List<WriteTask<?>> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                WriteTask<?> first = running ? queue.take() : queue.poll();
+                if (first == null) {
+                    break;
+                }
+                batch.add(first);
+                collect(batch);
+            } catch (InterruptedException e) {
+                // Shutdown requested; keep draining whatever is already queued
+                if (batch.isEmpty()) {
+                    continue;
+                }
+            }
+            commitBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void collect(List<WriteTask<?>> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !running) {
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                return;
+            }
+            WriteTask<?> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void commitBatch(List<WriteTask<?>> batch) {
+        List<WriteTask<?>> applied = new ArrayList<>(batch.size());
+        for (WriteTask<?> task : batch) {
+            Savepoint savepoint = null;
+            try {
+                savepoint = connection.setSavepoint();
+                task.apply(connection);
+                connection.releaseSavepoint(savepoint);
+                applied.add(task);
+            } catch (SQLException | RuntimeException e) {
+                // Undo only this task; the rest of the batch still commits
+                rollbackTo(savepoint);
+                task.future.completeExceptionally(e);
+            }
+        }
+
+        try {
+            connection.commit();
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException ex) {
+                ex.printStackTrace();
+            }
+            for (WriteTask<?> task : applied) {
+                task.future.completeExceptionally(e);
+            }
+            return;
+        }
+
+        batchCount.incrementAndGet();
+        writeCount.addAndGet(applied.size());
+        for (WriteTask<?> task : applied) {
+            task.complete();
+        }
+    }
+
+    private void rollbackTo(Savepoint savepoint) {
+        if (savepoint == null) {
+            return;
+        }
+        try {
+            connection.rollback(savepoint);
+            connection.releaseSavepoint(savepoint);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static final class WriteTask<T> {
+        private final SqlWork<T> work;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private T result;
+
+        WriteTask(SqlWork<T> work) {
+            this.work = work;
+        }
+
+        void apply(Connection conn) throws SQLException {
+            result = work.execute(conn);
+        }
+
+        void complete() {
+            future.complete(result);
+        }
+    }
+}
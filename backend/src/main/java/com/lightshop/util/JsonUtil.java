@@ -3,19 +3,28 @@ package com.lightshop.util;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class JsonUtil {
     private static final Gson gson = new GsonBuilder()
             .setDateFormat("yyyy-MM-dd HH:mm:ss")
             .create();
+    private static final long MAX_BODY_BYTES = DatabaseUtil.getEnvLong("MAX_REQUEST_BODY_BYTES", 1024 * 1024);
 
     public static String toJson(Object obj) {
         return gson.toJson(obj);
@@ -31,61 +40,197 @@ public class JsonUtil {
 
     public static String readRequestBody(HttpServletRequest request) throws IOException {
         StringBuilder sb = new StringBuilder();
-        try (BufferedReader reader = request.getReader()) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
+        try (Reader reader = openBody(request)) {
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, read);
             }
         }
         return sb.toString();
     }
 
+    /**
+     * Binds the request body straight from the input stream, without building
+     * a String or a JsonObject tree first.
+     */
     public static <T> T readRequestBody(HttpServletRequest request, Class<T> clazz) throws IOException {
-        String body = readRequestBody(request);
-        return fromJson(body, clazz);
+        try (Reader reader = openBody(request)) {
+            return gson.fromJson(reader, clazz);
+        } catch (JsonParseException e) {
+            // Gson wraps stream errors; surface the size limit as itself
+            if (e.getCause() instanceof BodyTooLargeException) {
+                throw (BodyTooLargeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public static JsonObject readJson(HttpServletRequest request) throws IOException {
+        return readRequestBody(request, JsonObject.class);
+    }
+
+    public static long getMaxBodyBytes() {
+        return MAX_BODY_BYTES;
+    }
+
+    // The declared length is rejected before anything is read; chunked bodies are cut off at the limit
+    private static Reader openBody(HttpServletRequest request) throws IOException {
+        if (request.getContentLengthLong() > MAX_BODY_BYTES) {
+            throw new BodyTooLargeException();
+        }
+        String encoding = request.getCharacterEncoding();
+        Charset charset = encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+        return new InputStreamReader(new LimitedInputStream(request.getInputStream(), MAX_BODY_BYTES), charset);
     }
 
     public static void writeResponse(HttpServletResponse response, Object data) throws IOException {
-        response.setContentType("application/json");
-        response.setCharacterEncoding("UTF-8");
-        try (PrintWriter writer = response.getWriter()) {
-            writer.write(toJson(data));
+        try (JsonWriter out = openWriter(response)) {
+            writeValue(out, data);
         }
     }
 
     public static void writeSuccess(HttpServletResponse response, Object data) throws IOException {
-        Map<String, Object> result = new HashMap<>();
-        result.put("code", 200);
-        result.put("message", "success");
-        result.put("data", data);
-        writeResponse(response, result);
+        writeSuccess(response, "success", data);
     }
 
     public static void writeSuccess(HttpServletResponse response, String message, Object data) throws IOException {
-        Map<String, Object> result = new HashMap<>();
-        result.put("code", 200);
-        result.put("message", message);
-        result.put("data", data);
-        writeResponse(response, result);
+        writeEnvelope(response, 200, message, out -> writeValue(out, data));
     }
 
     public static void writeError(HttpServletResponse response, int code, String message) throws IOException {
+        if (response.isCommitted()) {
+            // Part of a body already went out; a second envelope would only corrupt it
+            System.err.println("Response already committed, dropping error " + code + ": " + message);
+            return;
+        }
         response.setStatus(code >= 400 && code < 600 ? code : 400);
-        Map<String, Object> result = new HashMap<>();
-        result.put("code", code);
-        result.put("message", message);
-        result.put("data", null);
-        writeResponse(response, result);
+        writeEnvelope(response, code, message, JsonWriter::nullValue);
     }
 
     public static void writePageData(HttpServletResponse response, Object list, int total, int page, int pageSize) throws IOException {
-        Map<String, Object> data = new HashMap<>();
-        data.put("list", list);
-        data.put("total", total);
-        data.put("page", page);
-        data.put("pageSize", pageSize);
-        data.put("totalPages", (int) Math.ceil((double) total / pageSize));
-        writeSuccess(response, data);
+        writeEnvelope(response, 200, "success", out -> {
+            out.beginObject();
+            out.name("list");
+            writeValue(out, list);
+            out.name("total").value(total);
+            out.name("page").value(page);
+            out.name("pageSize").value(pageSize);
+            out.name("totalPages").value((int) Math.ceil((double) total / pageSize));
+            out.endObject();
+        });
     }
-}
 
+    /**
+     * Keyset-mode listing: decodes the request's cursor (400 if malformed),
+     * loads the page after it and writes it, counting the total only when
+     * withTotal=true.
+     */
+    public static <T> void writeCursorPage(HttpServletRequest request, HttpServletResponse response,
+                                           Function<Cursor, CursorPage<T>> loader, Supplier<Integer> counter) throws IOException {
+        Cursor after;
+        try {
+            after = Cursor.decode(request.getParameter("cursor"));
+        } catch (IllegalArgumentException e) {
+            writeError(response, 400, "无效的分页游标");
+            return;
+        }
+        CursorPage<T> page = loader.apply(after);
+        Integer total = "true".equals(request.getParameter("withTotal")) ? counter.get() : null;
+        writeCursorPage(response, page, total);
+    }
+
+    public static void writeCursorPage(HttpServletResponse response, CursorPage<?> page, Integer total) throws IOException {
+        writeEnvelope(response, 200, "success", out -> {
+            out.beginObject();
+            out.name("list");
+            writeValue(out, page.getList());
+            out.name("nextCursor").value(page.getNextCursor());
+            out.name("hasMore").value(page.hasMore());
+            if (total != null) {
+                out.name("total").value(total);
+            }
+            out.endObject();
+        });
+    }
+
+    // The code/message/data envelope is written straight to the response
+    // stream, so large lists are never held as a second copy in a String
+    private static void writeEnvelope(HttpServletResponse response, int code, String message, DataWriter data) throws IOException {
+        JsonWriter out = openWriter(response);
+        try {
+            out.beginObject();
+            out.name("code").value(code);
+            out.name("message").value(message);
+            out.name("data");
+            data.write(out);
+            out.endObject();
+        } catch (IOException | RuntimeException e) {
+            // Not closing the writer keeps the partial body out of the response; if none of it
+            // was committed yet, the caller's error envelope replaces it cleanly
+            if (!response.isCommitted()) {
+                response.resetBuffer();
+            }
+            throw e;
+        }
+        out.close();
+    }
+
+    private static JsonWriter openWriter(HttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        return gson.newJsonWriter(new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8)));
+    }
+
+    private static void writeValue(JsonWriter out, Object value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else {
+            gson.toJson(value, value.getClass(), out);
+        }
+    }
+
+    private interface DataWriter {
+        void write(JsonWriter out) throws IOException;
+    }
+
+    public static class BodyTooLargeException extends IOException {
+        public BodyTooLargeException() {
+            super("Request body exceeds " + MAX_BODY_BYTES + " bytes");
+        }
+    }
+
+    private static final class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                consume(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                consume(read);
+            }
+            return read;
+        }
+
+        private void consume(int count) throws BodyTooLargeException {
+            remaining -= count;
+            if (remaining < 0) {
+                throw new BodyTooLargeException();
+            }
+        }
+    }
+}
@@ -1,21 +1,31 @@
 package com.lightshop.util;
 
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
 
 import javax.crypto.SecretKey;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
 public class JwtUtil {
     private static final long EXPIRATION_TIME = 7 * 24 * 60 * 60 * 1000; // 7 days
-    private static SecretKey secretKey;
+    // Verified tokens are remembered briefly so repeat requests skip the HMAC check and claim parsing
+    private static final long TOKEN_CACHE_TTL_MS = 10 * 60 * 1000;
+    private static final LruCache<String, AuthPrincipal> tokenCache =
+        new LruCache<>(DatabaseUtil.getEnvInt("JWT_CACHE_SIZE", 10000), TOKEN_CACHE_TTL_MS);
 
-    public static void init(String secret) {
+    private static volatile SecretKey secretKey;
+    private static volatile JwtParser parser;
+
+    public static synchronized void init(String secret) {
         if (secret == null || secret.length() < 32) {
             secret = "lightshop_jwt_secret_key_2024_very_secure_default";
         }
@@ -24,16 +34,25 @@ public class JwtUtil {
         byte[] secretBytes = secret.getBytes(StandardCharsets.UTF_8);
         System.arraycopy(secretBytes, 0, keyBytes, 0, Math.min(secretBytes.length, 32));
         secretKey = Keys.hmacShaKeyFor(keyBytes);
+        // The parser is immutable and thread-safe; build it once per key
+        parser = Jwts.parserBuilder().setSigningKey(secretKey).build();
+        tokenCache.clear();
     }
 
     private static SecretKey getSecretKey() {
         if (secretKey == null) {
-            String secret = System.getenv("JWT_SECRET");
-            init(secret);
+            init(System.getenv("JWT_SECRET"));
         }
         return secretKey;
     }
 
+    private static JwtParser getParser() {
+        if (parser == null) {
+            init(System.getenv("JWT_SECRET"));
+        }
+        return parser;
+    }
+
     public static String generateToken(int userId, String username, int role) {
         Map<String, Object> claims = new HashMap<>();
         claims.put("userId", userId);
@@ -51,63 +70,84 @@ public class JwtUtil {
 
     public static Claims parseToken(String token) {
         try {
-            return Jwts.parserBuilder()
-                    .setSigningKey(getSecretKey())
-                    .build()
-                    .parseClaimsJws(token)
-                    .getBody();
+            return getParser().parseClaimsJws(token).getBody();
         } catch (Exception e) {
             return null;
         }
     }
 
-    public static boolean validateToken(String token) {
-        Claims claims = parseToken(token);
-        if (claims == null) {
-            return false;
+    /**
+     * Verifies a token once and returns its principal, or null if the token
+     * is invalid, expired or lacks a user id.
+     */
+    public static AuthPrincipal authenticate(String token) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        String key = hash(token);
+        AuthPrincipal cached = tokenCache.get(key);
+        if (cached != null) {
+            if (!cached.isExpired()) {
+                return cached;
+            }
+            tokenCache.remove(key);
+            return null;
         }
-        return claims.getExpiration().after(new Date());
-    }
 
-    public static Integer getUserId(String token) {
         Claims claims = parseToken(token);
-        if (claims == null) {
+        if (claims == null || claims.getExpiration() == null) {
             return null;
         }
-        Object userId = claims.get("userId");
-        if (userId instanceof Integer) {
-            return (Integer) userId;
-        } else if (userId instanceof Double) {
-            return ((Double) userId).intValue();
+        Integer userId = toInteger(claims.get("userId"));
+        if (userId == null) {
+            return null;
         }
-        return null;
-    }
-
-    public static String getUsername(String token) {
-        Claims claims = parseToken(token);
-        if (claims == null) {
+        Integer role = toInteger(claims.get("role"));
+        AuthPrincipal principal = new AuthPrincipal(
+            userId,
+            (String) claims.get("username"),
+            role == null ? 0 : role,
+            claims.getExpiration().getTime()
+        );
+        if (principal.isExpired()) {
             return null;
         }
-        return (String) claims.get("username");
+        tokenCache.put(key, principal);
+        return principal;
     }
 
-    public static Integer getRole(String token) {
-        Claims claims = parseToken(token);
-        if (claims == null) {
-            return null;
-        }
-        Object role = claims.get("role");
-        if (role instanceof Integer) {
-            return (Integer) role;
-        } else if (role instanceof Double) {
-            return ((Double) role).intValue();
+    public static Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("size", tokenCache.size());
+        stats.put("hits", tokenCache.getHits());
+        stats.put("misses", tokenCache.getMisses());
+        stats.put("hitRatio", tokenCache.getHitRatio());
+        return stats;
+    }
+
+    public static boolean validateToken(String token) {
+        return authenticate(token) != null;
+    }
+
+    public static boolean isAdmin(String token) {
+        AuthPrincipal principal = authenticate(token);
+        return principal != null && principal.isAdmin();
+    }
+
+    private static Integer toInteger(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
         }
         return null;
     }
 
-    public static boolean isAdmin(String token) {
-        Integer role = getRole(token);
-        return role != null && role == 1;
+    // Cache by digest so raw bearer tokens aren't kept in memory
+    private static String hash(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
     }
 }
-
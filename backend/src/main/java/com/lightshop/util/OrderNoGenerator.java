@@ -0,0 +1,74 @@
+package com.lightshop.util;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Order numbers of the form LS + yyyyMMddHHmmss (UTC+8) + 2-digit node id +
+ * 4-digit sequence. The second and the sequence live in a single AtomicLong
+ * (second * 10000 + seq) advanced by CAS, so numbers are strictly increasing
+ * per node without locks. When a second runs out of sequence numbers the
+ * generator moves on to the next second early, and it never goes back if the
+ * clock does, so numbers stay unique across threads and, with distinct
+ * NODE_ID values, across nodes.
+ */
+public class OrderNoGenerator {
+    private static final int SEQUENCE_PER_SECOND = 10_000;
+    // Fixed offset rather than the system zone: a DST fall-back would repeat
+    // an hour of wall-clock text and with it the order numbers
+    private static final ZoneOffset ZONE = ZoneOffset.ofHours(8);
+    private static final DateTimeFormatter SECOND_FORMAT =
+        DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZONE);
+
+    private static final String NODE = String.format("%02d",
+        Math.floorMod(DatabaseUtil.getEnvInt("NODE_ID", 0), 100));
+    // Start one second ahead so a quick restart can't reuse the last second's numbers
+    private static final AtomicLong state =
+        new AtomicLong((System.currentTimeMillis() / 1000 + 1) * SEQUENCE_PER_SECOND - 1);
+    private static volatile Prefix prefix = new Prefix(-1, "");
+
+    public static String next() {
+        long now = System.currentTimeMillis() / 1000;
+        long current;
+        long next;
+        do {
+            current = state.get();
+            next = current / SEQUENCE_PER_SECOND < now ? now * SEQUENCE_PER_SECOND : current + 1;
+        } while (!state.compareAndSet(current, next));
+
+        long second = next / SEQUENCE_PER_SECOND;
+        int sequence = (int) (next % SEQUENCE_PER_SECOND);
+        return new StringBuilder(22)
+            .append(prefixFor(second))
+            .append((char) ('0' + sequence / 1000))
+            .append((char) ('0' + sequence / 100 % 10))
+            .append((char) ('0' + sequence / 10 % 10))
+            .append((char) ('0' + sequence % 10))
+            .toString();
+    }
+
+    // Formatting the date once per second instead of once per order
+    private static String prefixFor(long second) {
+        Prefix cached = prefix;
+        if (cached.second == second) {
+            return cached.text;
+        }
+        String text = "LS" + SECOND_FORMAT.format(Instant.ofEpochSecond(second)) + NODE;
+        if (second > cached.second) {
+            prefix = new Prefix(second, text);
+        }
+        return text;
+    }
+
+    private static final class Prefix {
+        private final long second;
+        private final String text;
+
+        Prefix(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
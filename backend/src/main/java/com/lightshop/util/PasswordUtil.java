@@ -2,9 +2,26 @@ package com.lightshop.util;
 
 import org.mindrot.jbcrypt.BCrypt;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
 public class PasswordUtil {
     private static final int LOG_ROUNDS = 10;
 
+    // bcrypt is deliberately slow; it runs on its own bounded pool so a login
+    // burst queues here (or is rejected) instead of tying up request threads
+    private static final ThreadPoolExecutor hashExecutor = createExecutor();
+    private static final AtomicLong submitted = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+
     public static String hashPassword(String password) {
         return BCrypt.hashpw(password, BCrypt.gensalt(LOG_ROUNDS));
     }
@@ -16,5 +33,58 @@ public class PasswordUtil {
             return false;
         }
     }
-}
 
+    /**
+     * Runs password work on the hashing pool. Throws RejectedExecutionException
+     * straight away when the pool and its queue are full, so callers can
+     * answer 429 without waiting.
+     */
+    public static <T> CompletableFuture<T> submit(Supplier<T> work) {
+        try {
+            CompletableFuture<T> future = CompletableFuture.supplyAsync(work, hashExecutor);
+            submitted.incrementAndGet();
+            return future;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    public static CompletableFuture<Boolean> checkPasswordAsync(String password, String hashedPassword) {
+        return submit(() -> checkPassword(password, hashedPassword));
+    }
+
+    public static CompletableFuture<String> hashPasswordAsync(String password) {
+        return submit(() -> hashPassword(password));
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("threads", hashExecutor.getMaximumPoolSize());
+        stats.put("active", hashExecutor.getActiveCount());
+        stats.put("queued", hashExecutor.getQueue().size());
+        stats.put("queueCapacity", hashExecutor.getQueue().size() + hashExecutor.getQueue().remainingCapacity());
+        stats.put("submitted", submitted.get());
+        stats.put("completed", hashExecutor.getCompletedTaskCount());
+        stats.put("rejected", rejected.get());
+        return stats;
+    }
+
+    public static void shutdown() {
+        hashExecutor.shutdown();
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        int threads = Math.max(1, DatabaseUtil.getEnvInt("PASSWORD_HASH_THREADS", Runtime.getRuntime().availableProcessors()));
+        int queueSize = Math.max(1, DatabaseUtil.getEnvInt("PASSWORD_HASH_QUEUE_SIZE", 64));
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize),
+            r -> {
+                Thread t = new Thread(r, "lightshop-password-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+    }
+}
@@ -0,0 +1,209 @@
+package com.lightshop.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of prepared statements for one physical connection, keyed by SQL
+ * text. {@link #wrap(Connection, int)} returns a connection whose
+ * prepareStatement() reuses cached statements and whose statements go back to
+ * the cache on close(), so DAO code stays unchanged.
+ */
+public class StatementCache {
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private final Connection physical;
+    private final LinkedHashMap<String, CachedStatement> statements;
+
+    private StatementCache(Connection physical, int maxSize) {
+        this.physical = physical;
+        this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    eldest.getValue().evict();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static Connection wrap(Connection physical, int maxSize) {
+        if (maxSize <= 0) {
+            return physical;
+        }
+        StatementCache cache = new StatementCache(physical, maxSize);
+        return (Connection) Proxy.newProxyInstance(
+            Connection.class.getClassLoader(),
+            new Class<?>[]{Connection.class},
+            cache::invokeConnection
+        );
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static long getEvictions() {
+        return evictions.get();
+    }
+
+    private Object invokeConnection(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if ("prepareStatement".equals(name) && args.length == 1) {
+            return prepare((String) args[0], Statement.NO_GENERATED_KEYS);
+        }
+        if ("prepareStatement".equals(name) && args.length == 2 && method.getParameterTypes()[1] == int.class) {
+            return prepare((String) args[0], (Integer) args[1]);
+        }
+        if ("close".equals(name)) {
+            closeAll();
+        }
+        return delegate(physical, method, args);
+    }
+
+    private synchronized PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "K:" + sql : sql;
+        CachedStatement cached = statements.get(key);
+        if (cached != null && !cached.inUse) {
+            hits.incrementAndGet();
+            return cached.lease();
+        }
+
+        misses.incrementAndGet();
+        PreparedStatement stmt = physical.prepareStatement(sql, autoGeneratedKeys);
+        if (cached != null) {
+            // Same SQL is already open on this connection (nested use); don't share it
+            return stmt;
+        }
+        cached = new CachedStatement(stmt);
+        statements.put(key, cached);
+        return cached.lease();
+    }
+
+    private synchronized void closeAll() {
+        List<CachedStatement> all = new ArrayList<>(statements.values());
+        statements.clear();
+        for (CachedStatement cached : all) {
+            cached.evict();
+        }
+    }
+
+    private static Object delegate(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private final class CachedStatement {
+        private final PreparedStatement stmt;
+        // Last result set handed out, closed on return if the caller left it open
+        private ResultSet results;
+        private boolean inUse = false;
+        private boolean evicted = false;
+
+        CachedStatement(PreparedStatement stmt) {
+            this.stmt = stmt;
+        }
+
+        PreparedStatement lease() {
+            inUse = true;
+            return (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class},
+                new LeaseHandler(this)
+            );
+        }
+
+        void giveBack() {
+            synchronized (StatementCache.this) {
+                inUse = false;
+                if (evicted) {
+                    DatabaseUtil.close(stmt);
+                    return;
+                }
+            }
+            try {
+                // An open result set keeps a read transaction on the connection and stalls WAL checkpoints
+                if (results != null) {
+                    ResultSet open = results;
+                    results = null;
+                    open.close();
+                }
+                stmt.clearParameters();
+                stmt.clearBatch();
+            } catch (SQLException e) {
+                synchronized (StatementCache.this) {
+                    statements.values().remove(this);
+                }
+                DatabaseUtil.close(stmt);
+            }
+        }
+
+        // Called with the cache lock held
+        void evict() {
+            evicted = true;
+            if (!inUse) {
+                DatabaseUtil.close(stmt);
+            }
+        }
+    }
+
+    private static final class LeaseHandler implements InvocationHandler {
+        private final CachedStatement cached;
+        private boolean returned = false;
+
+        LeaseHandler(CachedStatement cached) {
+            this.cached = cached;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!returned) {
+                        returned = true;
+                        cached.giveBack();
+                    }
+                    return null;
+                case "isClosed":
+                    return returned || cached.stmt.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    if (returned) {
+                        throw new SQLException("Statement has already been closed");
+                    }
+                    Object result = delegate(cached.stmt, method, args);
+                    if (result instanceof ResultSet) {
+                        cached.results = (ResultSet) result;
+                    }
+                    return result;
+            }
+        }
+    }
+}
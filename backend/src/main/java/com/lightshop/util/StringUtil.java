@@ -1,12 +1,8 @@
 package com.lightshop.util;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Random;
 import java.util.UUID;
 
 public class StringUtil {
-    private static final Random random = new Random();
 
     public static boolean isEmpty(String str) {
         return str == null || str.trim().isEmpty();
@@ -17,10 +13,7 @@ public class StringUtil {
     }
 
     public static String generateOrderNo() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
-        String timestamp = sdf.format(new Date());
-        String randomPart = String.format("%06d", random.nextInt(1000000));
-        return "LS" + timestamp + randomPart;
+        return OrderNoGenerator.next();
     }
 
     public static String generateUUID() {
@@ -66,5 +59,23 @@ public class StringUtil {
         }
         return password.length() >= 6 && password.length() <= 32;
     }
-}
 
+    public static String escapeHtml(String text) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': sb.append("&lt;"); break;
+                case '>': sb.append("&gt;"); break;
+                case '&': sb.append("&amp;"); break;
+                case '"': sb.append("&quot;"); break;
+                case '\'': sb.append("&#39;"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,55 @@
+package com.lightshop.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory modification counters per table, bumped by the DAO write methods
+ * after their write has committed. Counters restart at zero on every boot, so
+ * anything derived from them must also include {@link #getBootEpoch()}.
+ */
+public class TableVersions {
+    public static final String PRODUCTS = "products";
+    public static final String CATEGORIES = "categories";
+    public static final String BANNERS = "banners";
+    public static final String SETTINGS = "settings";
+    public static final String REVIEWS = "reviews";
+
+    private static final long BOOT_EPOCH = System.currentTimeMillis();
+    private static final ConcurrentHashMap<String, Version> versions = new ConcurrentHashMap<>();
+
+    public static void bump(String table) {
+        Version version = versions.computeIfAbsent(table, t -> new Version());
+        version.lastModified = System.currentTimeMillis();
+        version.counter.incrementAndGet();
+    }
+
+    public static long getVersion(String table) {
+        Version version = versions.get(table);
+        return version == null ? 0 : version.counter.get();
+    }
+
+    public static long getLastModified(String table) {
+        Version version = versions.get(table);
+        return version == null ? BOOT_EPOCH : version.lastModified;
+    }
+
+    public static long getBootEpoch() {
+        return BOOT_EPOCH;
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        for (Map.Entry<String, Version> entry : versions.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().counter.get());
+        }
+        return stats;
+    }
+
+    private static final class Version {
+        private final AtomicLong counter = new AtomicLong();
+        private volatile long lastModified = BOOT_EPOCH;
+    }
+}
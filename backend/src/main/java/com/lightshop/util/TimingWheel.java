@@ -0,0 +1,149 @@
+package com.lightshop.util;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel over int keys. Level 0 has one slot per tick;
+ * each level above covers a whole revolution of the one below per slot, so
+ * adding a timer is O(1) and a tick only touches the slots that come due.
+ * Timers far in the future wait in an upper level and are cascaded down as
+ * their slot comes round. Entries are kept as parallel primitive arrays, a
+ * dozen bytes per timer.
+ *
+ * Timers can't be cancelled; callers are expected to re-check the key when it
+ * fires. Not thread safe: callers synchronize.
+ */
+public class TimingWheel {
+    private final long tickMs;
+    private final int wheelSize;
+    private final Slot[][] levels;
+    // Span of one slot on each level, in ticks
+    private final long[] slotTicks;
+    private final Slot due = new Slot();
+    private long currentTick;
+    private int size;
+
+    public TimingWheel(long tickMs, int wheelSize, int levelCount, long nowMs) {
+        this.tickMs = tickMs;
+        this.wheelSize = wheelSize;
+        this.levels = new Slot[levelCount][wheelSize];
+        this.slotTicks = new long[levelCount];
+        long span = 1;
+        for (int i = 0; i < levelCount; i++) {
+            slotTicks[i] = span;
+            span *= wheelSize;
+        }
+        this.currentTick = nowMs / tickMs;
+    }
+
+    public void add(int key, long expiresAtMs) {
+        // Round up so a timer never fires early
+        place(key, (expiresAtMs + tickMs - 1) / tickMs);
+        size++;
+    }
+
+    /**
+     * Moves the clock to nowMs and hands every key that came due to the
+     * consumer, including ones added with a deadline already in the past.
+     */
+    public void advance(long nowMs, KeyConsumer consumer) {
+        long target = nowMs / tickMs;
+        drain(due, consumer);
+        while (currentTick < target) {
+            currentTick++;
+            for (int level = levels.length - 1; level > 0; level--) {
+                if (currentTick % slotTicks[level] == 0) {
+                    cascade(level);
+                }
+            }
+            Slot slot = levels[0][(int) (currentTick % wheelSize)];
+            if (slot != null) {
+                drain(slot, consumer);
+            }
+            drain(due, consumer);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void place(int key, long tick) {
+        if (tick <= currentTick) {
+            due.add(key, tick);
+            return;
+        }
+        int top = levels.length - 1;
+        for (int level = 0; level <= top; level++) {
+            long slotIndex = tick / slotTicks[level];
+            long distance = slotIndex - currentTick / slotTicks[level];
+            if (distance < wheelSize || level == top) {
+                // Beyond the top level: park in its farthest slot and re-place on cascade
+                long index = distance < wheelSize ? slotIndex : currentTick / slotTicks[level] + wheelSize - 1;
+                slot(level, (int) (index % wheelSize)).add(key, tick);
+                return;
+            }
+        }
+    }
+
+    private void cascade(int level) {
+        int index = (int) (currentTick / slotTicks[level] % wheelSize);
+        Slot slot = levels[level][index];
+        if (slot == null || slot.count == 0) {
+            return;
+        }
+        levels[level][index] = null;
+        for (int i = 0; i < slot.count; i++) {
+            place(slot.keys[i], slot.ticks[i]);
+        }
+    }
+
+    private void drain(Slot slot, KeyConsumer consumer) {
+        int count = slot.count;
+        if (count == 0) {
+            return;
+        }
+        int[] keys = Arrays.copyOf(slot.keys, count);
+        slot.clear();
+        size -= count;
+        for (int key : keys) {
+            consumer.accept(key);
+        }
+    }
+
+    private Slot slot(int level, int index) {
+        Slot slot = levels[level][index];
+        if (slot == null) {
+            slot = new Slot();
+            levels[level][index] = slot;
+        }
+        return slot;
+    }
+
+    @FunctionalInterface
+    public interface KeyConsumer {
+        void accept(int key);
+    }
+
+    private static final class Slot {
+        private int[] keys = new int[4];
+        private long[] ticks = new long[4];
+        private int count;
+
+        void add(int key, long tick) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                ticks = Arrays.copyOf(ticks, count * 2);
+            }
+            keys[count] = key;
+            ticks[count] = tick;
+            count++;
+        }
+
+        void clear() {
+            keys = new int[4];
+            ticks = new long[4];
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.lightshop.filter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimitFilterTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long START = 1_000_000 * MS;
+
+    @Test
+    void allowsBurstThenRejectsUntilNextToken() {
+        // 10 per second: one token every 100ms, up to 5 at once
+        RateLimitFilter.Rule rule = new RateLimitFilter.Rule("/api", 10, 5);
+        RateLimitFilter.Bucket bucket = new RateLimitFilter.Bucket(START);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, rule.acquire(bucket, START), "request " + i + " of the burst");
+        }
+        assertEquals(100 * MS, rule.acquire(bucket, START));
+        assertEquals(60 * MS, rule.acquire(bucket, START + 40 * MS));
+        assertEquals(0, rule.acquire(bucket, START + 100 * MS));
+    }
+
+    @Test
+    void rejectedRequestsDoNotConsumeTokens() {
+        RateLimitFilter.Rule rule = new RateLimitFilter.Rule("/api", 10, 1);
+        RateLimitFilter.Bucket bucket = new RateLimitFilter.Bucket(START);
+
+        assertEquals(0, rule.acquire(bucket, START));
+        long tat = bucket.get();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(rule.acquire(bucket, START + i * MS) > 0);
+        }
+        assertEquals(tat, bucket.get());
+        assertEquals(0, rule.acquire(bucket, START + 100 * MS));
+    }
+
+    @Test
+    void idleBucketRefillsToBurstOnly() {
+        RateLimitFilter.Rule rule = new RateLimitFilter.Rule("/api", 10, 3);
+        RateLimitFilter.Bucket bucket = new RateLimitFilter.Bucket(START);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rule.acquire(bucket, START));
+        }
+
+        long later = START + TimeUnit.SECONDS.toNanos(60);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rule.acquire(bucket, later), "request " + i + " after idling");
+        }
+        assertEquals(100 * MS, rule.acquire(bucket, later));
+    }
+
+    @Test
+    void retryAfterRoundsUpToWholeSeconds() {
+        assertEquals(1, RateLimitFilter.retryAfterSeconds(1));
+        assertEquals(1, RateLimitFilter.retryAfterSeconds(100 * MS));
+        assertEquals(1, RateLimitFilter.retryAfterSeconds(1000 * MS));
+        assertEquals(2, RateLimitFilter.retryAfterSeconds(1001 * MS));
+        assertEquals(5, RateLimitFilter.retryAfterSeconds(TimeUnit.SECONDS.toNanos(5)));
+    }
+
+    @Test
+    void slowRateWaitsReportedInSeconds() {
+        // One registration every 5 seconds, burst of 3
+        RateLimitFilter.Rule rule = new RateLimitFilter.Rule("/api/auth/register", 0.2, 3);
+        RateLimitFilter.Bucket bucket = new RateLimitFilter.Bucket(START);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rule.acquire(bucket, START));
+        }
+        long wait = rule.acquire(bucket, START);
+        assertEquals(TimeUnit.SECONDS.toNanos(5), wait);
+        assertEquals(5, RateLimitFilter.retryAfterSeconds(wait));
+    }
+}
@@ -0,0 +1,87 @@
+package com.lightshop.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderNoGeneratorTest {
+    // LS + yyyyMMddHHmmss + node + sequence
+    private static final int PREFIX_LENGTH = 2 + 14 + 2;
+
+    @Test
+    void numbersHaveTheDocumentedShape() {
+        String orderNo = OrderNoGenerator.next();
+        assertTrue(orderNo.matches("LS\\d{14}\\d{2}\\d{4}"), orderNo);
+
+        // The timestamp is UTC+8 wall-clock time, not behind the current time
+        LocalDateTime stamped = LocalDateTime.parse(orderNo.substring(2, 16), DateTimeFormatter.ofPattern("yyyyMMddHHmmss"));
+        long stampedSecond = stamped.toEpochSecond(ZoneOffset.ofHours(8));
+        assertTrue(stampedSecond >= System.currentTimeMillis() / 1000 - 1, orderNo);
+    }
+
+    @Test
+    void numbersStrictlyIncrease() {
+        String previous = OrderNoGenerator.next();
+        for (int i = 0; i < 50_000; i++) {
+            String next = OrderNoGenerator.next();
+            assertTrue(next.compareTo(previous) > 0, previous + " then " + next);
+            previous = next;
+        }
+    }
+
+    @Test
+    void fullSecondMovesOnToTheNextSecond() {
+        List<String> numbers = new ArrayList<>();
+        for (int i = 0; i < 25_000; i++) {
+            numbers.add(OrderNoGenerator.next());
+        }
+
+        Map<String, Integer> perSecond = new HashMap<>();
+        for (String orderNo : numbers) {
+            perSecond.merge(orderNo.substring(0, PREFIX_LENGTH), 1, Integer::sum);
+        }
+        // At most 10000 numbers fit in a second, so 25000 need at least three
+        assertTrue(perSecond.size() >= 3, "seconds used: " + perSecond.size());
+        for (Map.Entry<String, Integer> entry : perSecond.entrySet()) {
+            assertTrue(entry.getValue() <= 10_000, entry.getKey() + " issued " + entry.getValue());
+        }
+    }
+
+    @Test
+    void concurrentCallersNeverShareANumber() throws Exception {
+        int threads = 8;
+        int perThread = 5_000;
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        seen.add(OrderNoGenerator.next());
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(threads * perThread, seen.size());
+    }
+}
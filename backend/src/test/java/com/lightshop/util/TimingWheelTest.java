@@ -0,0 +1,111 @@
+package com.lightshop.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+    private static final long TICK = 10;
+
+    // 4 slots on 2 levels: level 0 spans 4 ticks, level 1 spans 16; later deadlines are parked
+    private static TimingWheel smallWheel() {
+        return new TimingWheel(TICK, 4, 2, 0);
+    }
+
+    private static List<Integer> advance(TimingWheel wheel, long nowMs) {
+        List<Integer> fired = new ArrayList<>();
+        wheel.advance(nowMs, fired::add);
+        return fired;
+    }
+
+    @Test
+    void firesInTheTickOfItsDeadline() {
+        TimingWheel wheel = smallWheel();
+        wheel.add(1, 30);
+        wheel.add(2, 25);
+
+        assertEquals(List.of(), advance(wheel, 20));
+        assertEquals(List.of(1, 2), advance(wheel, 30));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void cascadesFromUpperLevelWithoutFiringEarly() {
+        TimingWheel wheel = smallWheel();
+        // Tick 7 is beyond level 0 when added, so it starts on level 1
+        wheel.add(7, 70);
+
+        for (long now = TICK; now < 70; now += TICK) {
+            assertEquals(List.of(), advance(wheel, now), "at " + now);
+        }
+        assertEquals(List.of(7), advance(wheel, 70));
+    }
+
+    @Test
+    void parksDeadlinesBeyondTheTopLevel() {
+        TimingWheel wheel = smallWheel();
+        wheel.add(1, 500);
+
+        for (long now = TICK; now < 500; now += TICK) {
+            assertEquals(List.of(), advance(wheel, now), "at " + now);
+        }
+        assertEquals(List.of(1), advance(wheel, 500));
+    }
+
+    @Test
+    void everyDeadlineFiresExactlyOnceAtItsRoundedUpTick() {
+        TimingWheel wheel = smallWheel();
+        Map<Integer, Long> deadlines = new HashMap<>();
+        for (int key = 0; key < 400; key++) {
+            long deadline = (key * 37L) % 1200;
+            deadlines.put(key, deadline);
+            wheel.add(key, deadline);
+        }
+        assertEquals(400, wheel.size());
+
+        Map<Integer, Long> firedAt = new HashMap<>();
+        for (long now = 0; now <= 1300; now += TICK) {
+            long at = now;
+            wheel.advance(now, key -> assertNull(firedAt.put(key, at), "key " + key + " fired twice"));
+        }
+
+        assertEquals(deadlines.size(), firedAt.size());
+        for (Map.Entry<Integer, Long> entry : deadlines.entrySet()) {
+            long expected = (entry.getValue() + TICK - 1) / TICK * TICK;
+            assertEquals(expected, firedAt.get(entry.getKey()), "key " + entry.getKey());
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void pastDeadlinesFireOnTheNextAdvance() {
+        TimingWheel wheel = new TimingWheel(TICK, 4, 2, 1000);
+        wheel.add(1, 200);
+        wheel.add(2, 1000);
+
+        assertEquals(List.of(1, 2), advance(wheel, 1000));
+    }
+
+    @Test
+    void largeJumpFiresOnlyWhatIsDue() {
+        TimingWheel wheel = smallWheel();
+        for (int key = 1; key <= 100; key++) {
+            wheel.add(key, key * 20L);
+        }
+
+        List<Integer> fired = advance(wheel, 1000);
+        assertEquals(50, fired.size());
+        for (int key : fired) {
+            assertTrue(key * 20L <= 1000, "key " + key + " fired early");
+        }
+        assertEquals(50, wheel.size());
+        assertEquals(50, advance(wheel, 2000).size());
+    }
+}